@@ -4,6 +4,7 @@ import android.app.Application;
 
 import com.choicely.imageservice.ChoicelyImageService;
 import com.choicely.imageservice.ChoicelyImageService.FileSystem;
+import com.choicely.imageservice.PoolSizing;
 
 import com.choicely.imagecompare.util.ImageUtil;
 import com.choicely.imagecompare.util.QLog;
@@ -23,7 +24,7 @@ public class ImageCompareApplication extends Application {
     }
 
     private void initImageService() {
-        ChoicelyImageService.init(this, FileSystem.APPLICATION_CACHE, "images/", 5, 5);
+        ChoicelyImageService.init(this, FileSystem.APPLICATION_CACHE, "images/", new PoolSizing());
         ChoicelyImageService is = ChoicelyImageService.getInstance();
 //        is.setDebug(true);
         is.setDebug(false);
@@ -19,6 +19,7 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageVH> {
     private ImageUtil imageUtil = ImageUtil.getInstance();
 
     private final List<String> list = new ArrayList<>();
+    private Object imageTag;
 
     public ImageAdapter() {
         super();
@@ -33,7 +34,7 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageVH> {
     public void onBindViewHolder(ImageVH holder, int position) {
         String url = list.get(position);
         holder.url = url;
-        imageUtil.setImage(holder, url);
+        imageUtil.setImage(holder, url, imageTag);
 
 //        holder.text.setText(holder.url);
     }
@@ -43,6 +44,13 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageVH> {
         return list.size();
     }
 
+    /**
+     * Set tag of the image requests of the list.
+     */
+    public void setImageTag(Object imageTag) {
+        this.imageTag = imageTag;
+    }
+
     public void add(String url) {
         list.add(url);
     }
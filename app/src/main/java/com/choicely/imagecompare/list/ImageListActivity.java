@@ -2,17 +2,27 @@ package com.choicely.imagecompare.list;
 
 import android.os.Bundle;
 import android.support.v7.widget.LinearLayoutManager;
+import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
 
 import com.choicely.imagecompare.BaseActivity;
 import com.choicely.imagecompare.R;
 import com.choicely.imagecompare.util.ImageUtil;
+import com.choicely.imageservice.ChoicelyImageService;
+import com.choicely.imageservice.ImageChooser;
+import com.choicely.imageservice.RequestGroup;
+import com.choicely.imageservice.recyclerview.RecyclerViewPreloader;
+
+import java.util.Collections;
+import java.util.List;
 
 public class ImageListActivity extends BaseActivity {
 
     private ImageUtil imageUtil = ImageUtil.getInstance();
     private RecyclerView recyclerView;
     private ImageAdapter adapter;
+    private RecyclerViewPreloader preloader;
+    private RequestGroup requestGroup;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -22,13 +32,48 @@ public class ImageListActivity extends BaseActivity {
         setTitle(imageUtil.getProvider().toString());
         recyclerView = (RecyclerView) findViewById(R.id.main_recycler_view);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        if (imageUtil.getProvider() == ImageUtil.ImageServiceProvider.CHOICELY_IS) {
+            requestGroup = RequestGroup.create(this);
+            preloader = new RecyclerViewPreloader(ChoicelyImageService.getInstance(), new RecyclerViewPreloader.PreloadProvider() {
+                @NonNull
+                @Override
+                public List<ImageChooser> getPreloadImages(int position) {
+                    List<String> list = imageUtil.getImageList();
+                    if (position < 0 || position >= list.size()) {
+                        return Collections.emptyList();
+                    }
+                    return Collections.singletonList(imageUtil.getChoicelyImageChooser(list.get(position), requestGroup));
+                }
+            }, 6);
+            recyclerView.addOnScrollListener(preloader);
+            recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                    if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                        requestGroup.pause();
+                    } else if (requestGroup.isPaused()) {
+                        requestGroup.resume();
+                    }
+                }
+            });
+        }
 
         updateContent();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (preloader != null) {
+            recyclerView.removeOnScrollListener(preloader);
+            preloader.clear();
+        }
+        super.onDestroy();
+    }
+
     private void updateContent() {
         if(adapter == null) {
             adapter = new ImageAdapter();
+            adapter.setImageTag(requestGroup);
             recyclerView.setAdapter(adapter);
         }
         adapter.addAll(imageUtil.getImageList());
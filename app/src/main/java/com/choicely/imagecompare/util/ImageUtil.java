@@ -9,9 +9,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.view.View;
 import android.view.animation.AnimationUtils;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
@@ -78,7 +80,10 @@ public class ImageUtil {
 //
     }};
 
-    private int imageSampleSize = 1000;
+    private int imageSampleSize = 0; // zero decodes to the size of the view
+    private int listImageWidth = 0; // last measured list image, used for preloading
+    private int listImageHeight = 0;
+    private ImageView.ScaleType listImageScaleType = null;
 
     private final String TAG = "ImageUtil";
     private final String PREFERENCE_PROVIDER = "provider";
@@ -118,7 +123,7 @@ public class ImageUtil {
 
         this.preferences = PreferenceManager.getDefaultSharedPreferences(ctx);
         provider = ImageServiceProvider.values()[preferences.getInt(PREFERENCE_PROVIDER, ImageServiceProvider.GLIDE.ordinal())];
-        imageSampleSize = preferences.getInt(PREFERENCE_SAMPLE_SIZE, 1000);
+        imageSampleSize = preferences.getInt(PREFERENCE_SAMPLE_SIZE, 0);
         blur = preferences.getBoolean(PREFERENCE_BLUR, false);
 
         Fresco.initialize(context);
@@ -211,6 +216,7 @@ public class ImageUtil {
     }
 
     private void clearChoicelyCache() {
+        is.clearMemoryCache();
         is.deleteFiles();
     }
 
@@ -239,6 +245,14 @@ public class ImageUtil {
     }
 
     public void setImage(ImageVH holder, String url) {
+        setImage(holder, url, null);
+    }
+
+    /**
+     * @param tag Tag of the request, used only by Choicely image service to pause and cancel
+     *            requests of a screen
+     */
+    public void setImage(ImageVH holder, String url, @Nullable Object tag) {
         if (holder.image == null) {
             QLog.w(TAG, "ImageView is null");
             return;
@@ -265,24 +279,28 @@ public class ImageUtil {
                 setUniversalImage(holder, url);
                 break;
             case CHOICELY_IS:
-                setChoicelyImage(holder, url);
+                setChoicelyImage(holder, url, tag);
                 break;
 
         }
     }
 
-    private void setChoicelyImage(final ImageVH holder, String url) {
+    private void setChoicelyImage(final ImageVH holder, String url, @Nullable Object tag) {
         final long start = System.currentTimeMillis();
-        ImageChooser info = new ImageChooser(url)
-                .sampleSize(imageSampleSize)
-                .setBlur(blur)
-                .setEnterAnimation(AnimationUtils.loadAnimation(context, R.anim.fade_in))
+        if (holder.image.getWidth() > 0 && holder.image.getHeight() > 0) {
+            listImageWidth = holder.image.getWidth() - holder.image.getPaddingLeft() - holder.image.getPaddingRight();
+            listImageHeight = holder.image.getHeight() - holder.image.getPaddingTop() - holder.image.getPaddingBottom();
+            listImageScaleType = holder.image.getScaleType();
+        }
+        ImageChooser info = getChoicelyImageChooser(url, tag)
                 .setImageServiceListener(new ImageServiceListener() {
                     @Override
                     public void imageReady(String imageUrl, Bitmap image, int defaultResId) {
                         onImageReady(holder.text, imageUrl, start);
                         if (image != null) {
                             QLog.d(TAG, "Image size[%d, %d]", image.getWidth(), image.getHeight());
+                            // only the size is needed, the view holds the bitmap
+                            is.releaseBitmap(image);
                         }
                     }
 
@@ -295,6 +313,25 @@ public class ImageUtil {
         is.setImage(info, holder.image);
     }
 
+    /**
+     * ImageChooser used for list images, also used for preloading so preloaded images are found
+     * from the memory cache.
+     */
+    public ImageChooser getChoicelyImageChooser(String url, @Nullable Object tag) {
+        ImageChooser info = new ImageChooser(url)
+                .setBlur(blur)
+                .setTag(tag)
+                .setEnterAnimation(AnimationUtils.loadAnimation(context, R.anim.fade_in));
+        if (imageSampleSize > 0) {
+            info.sampleSize(imageSampleSize);
+        } else if (listImageWidth > 0 && listImageHeight > 0) {
+            info.fitTo(listImageWidth, listImageHeight, listImageScaleType);
+        } else {
+            info.fitToView(true);
+        }
+        return info;
+    }
+
     private void setUniversalImage(final ImageVH holder, final String url) {
         final long start = System.currentTimeMillis();
         DisplayImageOptions options = new DisplayImageOptions.Builder()
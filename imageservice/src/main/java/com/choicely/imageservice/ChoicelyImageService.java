@@ -1,13 +1,19 @@
 package com.choicely.imageservice;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
@@ -17,31 +23,49 @@ import android.os.Build.VERSION_CODES;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.media.ExifInterface;
 import android.support.v4.util.Pair;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
 import android.view.animation.Animation.AnimationListener;
 import android.widget.ImageView;
 
+import com.choicely.imageservice.cache.BitmapMemoryCache;
+import com.choicely.imageservice.cache.BitmapPool;
+import com.choicely.imageservice.cache.ByteArrayPool;
+import com.choicely.imageservice.cache.CacheMetadata;
+import com.choicely.imageservice.cache.DiskLruCache;
+import com.choicely.imageservice.cache.NegativeCache;
 import com.choicely.imageservice.log.ChoicelyLogService;
 import com.choicely.imageservice.utils.ChoicelyStaticUtils;
+import com.choicely.imageservice.utils.ImageHeaderParser;
+import com.choicely.imageservice.utils.PooledBufferedInputStream;
 import com.choicely.imageservice.web.OkFileProgressHandler;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -51,6 +75,7 @@ import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -62,7 +87,7 @@ import okhttp3.Response;
  * @author tommy
  */
 @SuppressWarnings("unused")
-public class ChoicelyImageService extends ChoicelyLogService {
+public class ChoicelyImageService extends ChoicelyLogService implements ComponentCallbacks2 {
 
     /**
      * Recommended default compression of 75%.
@@ -76,25 +101,101 @@ public class ChoicelyImageService extends ChoicelyLogService {
 
     public static final String EMPTY_IMAGE_TAG = "empty_image_tag";
 
+    /**
+     * Default maximum size of the image directory, 100MB.
+     */
+    public static final long DEFAULT_DISK_CACHE_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * Compression of downscaled image variants stored to disk.
+     */
+    private static final int VARIANT_COMPRESSION = 90;
+
+    /**
+     * Files read to memory waiting for a decode thread. Disk reads wait when the queue is full,
+     * so at most this many read buffers are held.
+     */
+    private static final int DECODE_QUEUE_CAPACITY = 4;
+
+    /**
+     * Larger files are not read to memory by the disk read stage, decoder reads them itself.
+     */
+    private static final int MAX_BUFFERED_FILE_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Size of the pooled temporary storage given to the decoder.
+     */
+    private static final int DECODE_TEMP_STORAGE = 16 * 1024;
+
+    /**
+     * Time prefetching stays paused after memory got critically low while the application is
+     * in foreground. System tells again if memory is still low.
+     */
+    private static final long PREFETCH_PAUSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Prefetch requests kept while prefetching is paused, older ones are dropped.
+     */
+    private static final int MAX_PAUSED_PREFETCH = 100;
+
     private static final int CIS_SOCKET_TAG_ID = 313;
+    private static final int TASK_LOAD = 0; // download if needed and assign to waiting views
+    private static final int TASK_ASSIGN = 1; // assign downloaded image to waiting views
+    private static final int TASK_FETCH = 2; // download only
+    private static final int TASK_REVALIDATE = 3; // revalidate stale cached image
+    private static final int TASK_REQUEST = 4; // download and decode for an ImageRequest
+    private static final int TASK_RETRY = 5; // next attempt of a failed download
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
     private int maxTextureSize = -1;
 
-    private final ExecutorService downloadPool;
-    private final ExecutorService assignPool;
+    private final MeasuredExecutor downloadPool;
+    private final ResizableSemaphore downloadSlots;
+    private final Object slotLock = new Object(); // taking a slot and parking for one are atomic
+    private final Thread dispatcher;
+    private final MeasuredExecutor ioPool; // file checks, reads and metadata
+    private final MeasuredExecutor decodePool; // decoding and transforms, fed only by ioPool
+    private final PoolTuner poolTuner;
+    private final ExecutorService diskWritePool = Executors.newSingleThreadExecutor();
     private static final String TAG = "CIS";
     private static ChoicelyImageService instance;
     private OkHttpClient web;
-    private final Stack<ImageChooser> priorityStack = new Stack<>();
-    private final Stack<ImageChooser> taskStack = new Stack<>();
+    private final RequestScheduler scheduler = new RequestScheduler();
+    private final HostLimiter hostLimiter;
+    private final Prefetcher prefetcher = new Prefetcher(this);
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
     private final Map<String, List<Pair<ImageChooser, WeakReference<ImageView>>>> mappedViews = Collections
             .synchronizedMap(new HashMap<String, List<Pair<ImageChooser, WeakReference<ImageView>>>>());
-    private final Map<String, List<ImageLoadListener>> onDownloadReadyWaitMap = new HashMap<>();
+    private final Map<String, List<Pair<ImageChooser, WeakReference<ImageView>>>> decoding = new HashMap<>(); // views waiting for decode in progress, by memory cache key
 
-    private final List<String> loading = new ArrayList<>();
+    private final ConcurrentHashMap<String, PendingDownload> downloads = new ConcurrentHashMap<>(); // downloads in progress by url
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool bitmapPool = BitmapPool.createDefault();
+    private final ByteArrayPool byteArrayPool = new ByteArrayPool(ByteArrayPool.DEFAULT_MAX_BYTES);
+    private final BitmapMemoryCache memoryCache = BitmapMemoryCache.createDefault(bitmapPool);
+    private final NegativeCache negativeCache = new NegativeCache(); // urls that failed recently
+    private final Map<ImageView, Bitmap> displayedBitmaps = new WeakHashMap<>(); // accessed only in UI thread
+    private final List<ImageChooser> pausedPrefetch = new ArrayList<>();
+    private volatile int prefetchPauseLevel = 0; // trim memory level that paused prefetch, zero if not paused
+    private final Runnable resumePrefetchTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (prefetchPauseLevel > 0 && prefetchPauseLevel < TRIM_MEMORY_UI_HIDDEN) {
+                d("Prefetch pause timed out");
+                resumePrefetch();
+            }
+        }
+    };
     private WeakReference<Context> weakContext;
     private File directory;
+    private volatile DiskLruCache diskCache;
+    private final Set<String> createdFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<ImageView, ImageChooser> viewRequests = Collections.synchronizedMap(new WeakHashMap<ImageView, ImageChooser>());
+    private final Set<ImageRequest> pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<ImageRequest, Boolean>());
+    private long diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
     private String path;
     private FileSystem fileSystem;
 
@@ -110,13 +211,19 @@ public class ChoicelyImageService extends ChoicelyLogService {
 
     }
 
-    private ChoicelyImageService(Context context, FileSystem fileSystem, String filePath, int downloadThreads, int assignThreads, OkHttpClient client) {
+    private ChoicelyImageService(Context context, FileSystem fileSystem, String filePath, PoolSizing sizing, OkHttpClient client) {
         super(TAG);
         this.weakContext = new WeakReference<>(context);
         this.fileSystem = fileSystem;
         this.path = filePath;
-        downloadPool = Executors.newFixedThreadPool(downloadThreads);
-        assignPool = Executors.newFixedThreadPool(assignThreads);
+        int downloadThreads = sizing.getInitialDownloadThreads();
+        downloadPool = new MeasuredExecutor(downloadThreads, "CIS-download");
+        downloadSlots = new ResizableSemaphore(downloadThreads);
+        hostLimiter = new HostLimiter(downloadSlots);
+        ioPool = new MeasuredExecutor(sizing.getInitialIoThreads(), "CIS-io");
+        decodePool = new MeasuredExecutor(sizing.getInitialDecodeThreads(), "CIS-decode", DECODE_QUEUE_CAPACITY);
+        poolTuner = new PoolTuner(sizing, downloadPool, downloadSlots, ioPool, decodePool);
+        i("%s", sizing);
         if (client == null) {
             web = new OkHttpClient.Builder()
                     .readTimeout(20, TimeUnit.SECONDS)
@@ -129,6 +236,114 @@ public class ChoicelyImageService extends ChoicelyLogService {
 
         changeImageDirectory(context, fileSystem, filePath);
 
+        context.getApplicationContext().registerComponentCallbacks(this);
+
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "CIS-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        i("onTrimMemory[%d]", level);
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            // process is next to be killed, drop everything
+            trimMemory(0f, 0f);
+            pausePrefetch(level);
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            trimMemory(0.25f, 0f);
+            pausePrefetch(level);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            trimMemory(0.5f, 0f);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // images are not visible so there is nothing to reuse pooled bitmaps for
+            trimMemory(1f, 0.5f);
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimMemory(0.25f, 0f);
+            pausePrefetch(level);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimMemory(0.5f, 0.5f);
+            resumePrefetch();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimMemory(1f, 0.5f);
+            resumePrefetch();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Trim memory cache and bitmap pool to given share of their current size.
+     *
+     * @param memoryCacheFactor Share of memory cache to keep [0, 1]
+     * @param bitmapPoolFactor  Share of bitmap pool to keep [0, 1]
+     */
+    private void trimMemory(float memoryCacheFactor, float bitmapPoolFactor) {
+        if (memoryCacheFactor <= 0f) {
+            memoryCache.evictAll();
+        } else if (memoryCacheFactor < 1f) {
+            memoryCache.trimToSize((int) (memoryCache.size() * memoryCacheFactor));
+        }
+        if (bitmapPoolFactor <= 0f) {
+            bitmapPool.clear();
+        } else if (bitmapPoolFactor < 1f) {
+            bitmapPool.trimToSize((int) (bitmapPool.getCurrentSize() * bitmapPoolFactor));
+        }
+        d("Memory trimmed: cache[%d] %s", memoryCache.size(), bitmapPool);
+    }
+
+    private void pausePrefetch(int level) {
+        synchronized (pausedPrefetch) {
+            prefetchPauseLevel = Math.max(prefetchPauseLevel, level);
+        }
+        prefetcher.setPaused(true);
+        if (level < TRIM_MEMORY_UI_HIDDEN) {
+            // no callback tells when memory is fine again while in foreground
+            uiHandler.removeCallbacks(resumePrefetchTimeout);
+            uiHandler.postDelayed(resumePrefetchTimeout, PREFETCH_PAUSE_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Resume prefetch requests paused because of memory pressure.
+     */
+    public void resumePrefetch() {
+        List<ImageChooser> list;
+        synchronized (pausedPrefetch) {
+            if (prefetchPauseLevel == 0) {
+                return;
+            }
+            prefetchPauseLevel = 0;
+            list = new ArrayList<>(pausedPrefetch);
+            pausedPrefetch.clear();
+        }
+        uiHandler.removeCallbacks(resumePrefetchTimeout);
+        prefetcher.setPaused(false);
+        d("Resume %d prefetch requests", list.size());
+        for (ImageChooser info : list) {
+            loadImageInThread(info);
+        }
+    }
+
+    /**
+     * Is prefetching paused because of memory pressure.
+     */
+    public boolean isPrefetchPaused() {
+        synchronized (pausedPrefetch) {
+            return prefetchPauseLevel > 0;
+        }
     }
 
     public OkHttpClient getOkWebClient() {
@@ -223,14 +438,34 @@ public class ChoicelyImageService extends ChoicelyLogService {
      *                        be null, then default OkHttpClient will be used.
      */
     public static void init(Context context, FileSystem fileSystem, String filePath, int downloadThreads, int assignThreads, @Nullable OkHttpClient client) {
-        if (downloadThreads < 1) {
-            downloadThreads = 1;
-        }
-        if (assignThreads < 1) {
-            assignThreads = 1;
-        }
+        init(context, fileSystem, filePath, PoolSizing.fixed(downloadThreads, assignThreads), client);
+    }
+
+    /**
+     * Initialize with thread pools sized by the number of processor cores and resized at run
+     * time within the bounds of the sizing, see {@link PoolSizing}.
+     *
+     * @param context    Application context to access Cache dir.
+     * @param filePath   File path inside Cache dir.
+     * @param sizing     Bounds of the download and decode thread pools.
+     */
+    public static void init(Context context, FileSystem fileSystem, String filePath, PoolSizing sizing) {
+        init(context, fileSystem, filePath, sizing, null);
+    }
+
+    /**
+     * Initialize with thread pools sized by the number of processor cores and resized at run
+     * time within the bounds of the sizing, see {@link PoolSizing}.
+     *
+     * @param context    Application context to access Cache dir.
+     * @param filePath   File path inside Cache dir.
+     * @param sizing     Bounds of the download and decode thread pools.
+     * @param client     Custom configured OkHttpClient for ChoicelyImageService. Can
+     *                   be null, then default OkHttpClient will be used.
+     */
+    public static void init(Context context, FileSystem fileSystem, String filePath, PoolSizing sizing, @Nullable OkHttpClient client) {
         if (instance == null) {
-            instance = new ChoicelyImageService(context, fileSystem, filePath, downloadThreads, assignThreads, client);
+            instance = new ChoicelyImageService(context, fileSystem, filePath, sizing, client);
         } else {
             throw new IllegalStateException("ChoicelyImageService is already initialized");
         }
@@ -244,7 +479,7 @@ public class ChoicelyImageService extends ChoicelyLogService {
      * @param filePath   File path in cache dir.
      */
     public void changeImageDirectory(final Context context, final FileSystem fileSystem, final String filePath) {
-        assignPool.execute(new Runnable() {
+        ioPool.execute(new Runnable() {
             @Override
             public void run() {
                 changeDirectory(context, fileSystem, filePath);
@@ -273,6 +508,219 @@ public class ChoicelyImageService extends ChoicelyLogService {
         if (directory.mkdirs()) {
             d("[%s]Directory[%s] create", fileSystem, directory.getAbsolutePath());
         }
+        createdFolders.add(directory.getAbsolutePath());
+
+        DiskLruCache previous = diskCache;
+        diskCache = DiskLruCache.open(directory, diskCacheSize);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Set maximum size of the image directory. Least recently used images are deleted in
+     * background when the directory grows larger than this.
+     *
+     * NOTE: images stored to custom folders with {@link ImageChooser#setFolder(File)} are not
+     * counted.
+     *
+     * @param maxBytes Maximum size in bytes
+     */
+    public void setDiskCacheSize(long maxBytes) {
+        diskCacheSize = maxBytes;
+        DiskLruCache cache = diskCache;
+        if (cache != null) {
+            cache.setMaxSize(maxBytes);
+        }
+    }
+
+    /**
+     * Get disk cache of the image directory. Can be null until the directory has been opened.
+     *
+     * @return DiskLruCache
+     */
+    @Nullable
+    public DiskLruCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Get scheduler of image requests. Can be used to read queue depths and waiting times.
+     *
+     * @return RequestScheduler
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get per host download limits. Can be used to set limits of hosts and read their latency
+     * and throughput.
+     *
+     * @return HostLimiter
+     */
+    public HostLimiter getHostLimiter() {
+        return hostLimiter;
+    }
+
+    /**
+     * Get cache of recently failed urls. Can be used to set time to live of failures and read
+     * hit counts. A url is cached only when the server or the network failed and the
+     * {@link RetryPolicy} does not allow more attempts.
+     *
+     * @return NegativeCache
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * Set policy of retrying failed downloads. {@link RetryPolicy#none()} disables retries.
+     */
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Get tuner of the thread pools. Can be used to read current pool sizes and measurements.
+     *
+     * @return PoolTuner
+     */
+    public PoolTuner getPoolTuner() {
+        return poolTuner;
+    }
+
+    /**
+     * Get name of the file in the image directory or null if image is not stored to the
+     * image directory.
+     */
+    @Nullable
+    private String getDiskCacheKey(ImageChooser info) {
+        if (info.folder != null || TextUtils.isEmpty(info.url) || info.url.startsWith("/")) {
+            return null;
+        }
+        return "" + info.url.hashCode();
+    }
+
+    private void commitToDiskCache(ImageChooser info, File file, CacheMetadata metadata) {
+        DiskLruCache cache = diskCache;
+        String key = getDiskCacheKey(info);
+        if (cache != null && key != null && file != null) {
+            cache.commit(key, file, metadata);
+        }
+    }
+
+    /**
+     * Revalidate cached file in background if it is no longer fresh. Stale image is still used
+     * until the revalidation finds out it has changed. Files are not revalidated more often than
+     * {@link CacheMetadata#needsRevalidation(long)} allows.
+     */
+    private void revalidateIfStale(final ImageChooser info) {
+        if (getStaleMetadata(info) == null || !revalidating.add(info.url)) {
+            return;
+        }
+        scheduler.offer(info, Priority.BACKGROUND, TASK_REVALIDATE);
+    }
+
+    @Nullable
+    private CacheMetadata getStaleMetadata(ImageChooser info) {
+        DiskLruCache cache = diskCache;
+        String key = getDiskCacheKey(info);
+        if (cache == null || key == null) {
+            return null;
+        }
+        CacheMetadata metadata = cache.getMetadata(key);
+        if (metadata == null || !metadata.needsRevalidation(System.currentTimeMillis())) {
+            return null;
+        }
+        return metadata;
+    }
+
+    private void revalidateStale(ImageChooser info) {
+        try {
+            DiskLruCache cache = diskCache;
+            CacheMetadata metadata = getStaleMetadata(info);
+            if (cache != null && metadata != null) {
+                revalidate(info, cache, getDiskCacheKey(info), metadata);
+            }
+        } finally {
+            revalidating.remove(info.url);
+        }
+    }
+
+    /**
+     * Make conditional request for a stale cached file. Not modified response only renews
+     * the freshness, changed image replaces the cached file and drops decoded copies of it.
+     */
+    private void revalidate(ImageChooser info, DiskLruCache cache, String key, CacheMetadata metadata) {
+        d("[%s]Revalidating", info.url);
+        Request.Builder requestBuilder = new Request.Builder().url(info.url).get();
+        if (metadata.etag != null) {
+            requestBuilder.header("If-None-Match", metadata.etag);
+        }
+        String ifModifiedSince = metadata.getIfModifiedSince();
+        if (ifModifiedSince != null) {
+            requestBuilder.header("If-Modified-Since", ifModifiedSince);
+        }
+        String host = HostLimiter.getHost(info.url);
+        long requestTime = SystemClock.elapsedRealtime();
+        Response response;
+        try {
+            TrafficStats.setThreadStatsTag(CIS_SOCKET_TAG_ID);
+            response = web.newCall(requestBuilder.build()).execute();
+        } catch (Exception e) {
+            w(e, "[%s]Problem revalidating", info.url);
+            hostLimiter.record(host, SystemClock.elapsedRealtime() - requestTime, 0, 0, false);
+            return;
+        }
+        long latency = SystemClock.elapsedRealtime() - requestTime;
+
+        if (response.code() == HTTP_NOT_MODIFIED) {
+            d("[%s]Not modified", info.url);
+            cache.updateMetadata(key, metadata.revalidated(response));
+            ChoicelyStaticUtils.close(response);
+            hostLimiter.record(host, latency, latency, 0, true);
+        } else if (response.isSuccessful()) {
+            CacheMetadata newMetadata = CacheMetadata.fromResponse(response);
+            File imageFile = getImageFile(info);
+            File file = new OkFileProgressHandler(imageFile).handleResponse(response);
+            if (file == null) {
+                restoreFolder(imageFile);
+            }
+            hostLimiter.record(host, latency, SystemClock.elapsedRealtime() - requestTime,
+                    file != null ? file.length() : 0, file != null);
+            if (file != null) {
+                i("[%s]Image changed", info.url);
+                // replacing the original also removes its variants
+                cache.commit(key, file, newMetadata);
+                removeFromMemoryCache(info.url);
+            }
+        } else {
+            w("[%s]Revalidation failed[%d], keeping stale image", info.url, response.code());
+            ChoicelyStaticUtils.close(response);
+            hostLimiter.record(host, latency, latency, 0, false);
+        }
+    }
+
+    private void removeFromMemoryCache(String url) {
+        String prefix = url + "|";
+        for (String cacheKey : memoryCache.snapshot().keySet()) {
+            if (cacheKey.startsWith(prefix)) {
+                memoryCache.remove(cacheKey);
+            }
+        }
+    }
+
+    private void recordDiskCacheAccess(ImageChooser info) {
+        DiskLruCache cache = diskCache;
+        String key = getDiskCacheKey(info);
+        if (cache != null && key != null) {
+            cache.recordAccess(key);
+        }
     }
 
     private boolean checkWriteExternalPermission(Context context) {
@@ -284,6 +732,48 @@ public class ChoicelyImageService extends ChoicelyLogService {
         return (res == PackageManager.PERMISSION_GRANTED);
     }
 
+    /**
+     * Get memory cache of decoded images. Can be used to read hit and miss counts.
+     *
+     * @return BitmapMemoryCache
+     */
+    public BitmapMemoryCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Get pool of reusable bitmaps. Can be used to read hit and miss counts.
+     *
+     * @return BitmapPool
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Give back a bitmap received by an {@link ImageServiceListener}, so its pixels can be
+     * reused once no view or cache holds it. Bitmap must not be used after this.
+     */
+    public void releaseBitmap(Bitmap bm) {
+        bitmapPool.attach(bm);
+    }
+
+    /**
+     * Set maximum size of the decoded image memory cache.
+     *
+     * @param maxBytes Maximum size in bytes
+     */
+    public void setMemoryCacheSize(int maxBytes) {
+        memoryCache.resize(Math.max(1, maxBytes));
+    }
+
+    /**
+     * Clear all decoded images from memory cache.
+     */
+    public void clearMemoryCache() {
+        memoryCache.evictAll();
+    }
+
     /**
      * Get directory used by ChoicelyImageService
      *
@@ -329,8 +819,12 @@ public class ChoicelyImageService extends ChoicelyLogService {
             }
             folder = directory;
         }
-        if (folder.mkdirs()) {
-            i("[%s]directory created", folder.getAbsolutePath());
+        String folderPath = folder.getAbsolutePath();
+        if (!createdFolders.contains(folderPath)) {
+            if (folder.mkdirs()) {
+                i("[%s]directory created", folderPath);
+            }
+            createdFolders.add(folderPath);
         }
         if (info.url.startsWith("/")) {
             // works for local locations
@@ -341,6 +835,29 @@ public class ChoicelyImageService extends ChoicelyLogService {
         return new File(folder, fileName);
     }
 
+    /**
+     * Create folder of the file again if it has been deleted after it was created, for example
+     * when application data was cleared. Called after a failed write, folders are not checked
+     * before every write.
+     *
+     * @return true if folder was created again
+     */
+    private boolean restoreFolder(@Nullable File file) {
+        File folder = file != null ? file.getParentFile() : null;
+        if (folder == null || folder.exists()) {
+            return false;
+        }
+        String folderPath = folder.getAbsolutePath();
+        createdFolders.remove(folderPath);
+        if (!folder.mkdirs()) {
+            w("[%s]Could not create directory again", folderPath);
+            return false;
+        }
+        i("[%s]directory created again", folderPath);
+        createdFolders.add(folderPath);
+        return true;
+    }
+
     /**
      * Load image from web. This method does not assign image to ImageView but
      * returns the resulting Bitmap trough ImageServiceListener
@@ -359,7 +876,6 @@ public class ChoicelyImageService extends ChoicelyLogService {
             public void onSuccess(File file) {
                 final Bitmap bm = getBitmap(file);
                 notifyImageReady(listener, url, bm, defResource);
-                nextTask();
             }
 
             @Override
@@ -400,14 +916,126 @@ public class ChoicelyImageService extends ChoicelyLogService {
         loadImage(info, null);
     }
 
+    /**
+     * Load image to local disk in background thread. While memory is critically low the
+     * request is postponed until memory pressure eases, at most {@link #MAX_PAUSED_PREFETCH}
+     * latest requests are kept.
+     *
+     * @param info ImageInformation
+     */
     public void loadImageInThread(final ImageChooser info) {
-        downloadPool.execute(new Runnable() {
+        synchronized (pausedPrefetch) {
+            if (prefetchPauseLevel > 0) {
+                d("Prefetch paused, postponing[%s]", info.url);
+                if (pausedPrefetch.size() >= MAX_PAUSED_PREFETCH) {
+                    pausedPrefetch.remove(0);
+                }
+                pausedPrefetch.add(info);
+                return;
+            }
+        }
+        scheduler.offer(info, info.getPriority(Priority.PREFETCH), TASK_FETCH);
+    }
+
+    /**
+     * Load and decode image in background. Requests for the same url share one download, and
+     * images already on disk are decoded without waiting for a download thread.
+     *
+     * @param info ImageInformation, default priority is {@link Priority#VISIBLE}
+     * @return Handle of the request, see {@link ImageRequest}
+     */
+    public ImageRequest fetch(final ImageChooser info) {
+        return request(info, info.getPriority(Priority.VISIBLE), true);
+    }
+
+    /**
+     * Load images in background with low priority, for example the next page of a list.
+     * Images are only downloaded to disk.
+     *
+     * @param images ImageInformation of the images, default priority is {@link Priority#PREFETCH}
+     * @return Handle of the batch
+     */
+    public PrefetchBatch prefetch(Collection<ImageChooser> images) {
+        return prefetch(images, false, null);
+    }
+
+    /**
+     * Load images in background with low priority, for example the next page of a list. Only
+     * a few images are loaded at once and download rate can be limited, see
+     * {@link #setPrefetchLimits(int, long)}. Prefetching waits while memory is low.
+     *
+     * @param images   ImageInformation of the images, default priority is {@link Priority#PREFETCH}
+     * @param decode   true to decode the images to memory cache, so they can be shown right away
+     * @param listener Called when the whole batch is ready. Can be null.
+     * @return Handle of the batch
+     */
+    public PrefetchBatch prefetch(Collection<ImageChooser> images, boolean decode, @Nullable PrefetchListener listener) {
+        return prefetcher.prefetch(images, decode, listener);
+    }
+
+    /**
+     * Limit prefetching started with {@link #prefetch(Collection, boolean, PrefetchListener)}.
+     *
+     * @param maxConcurrent     Maximum number of images prefetched at once, default is 2
+     * @param maxBytesPerSecond Maximum download rate of prefetching, zero for unlimited. Budget of
+     *                          a download is reserved by the average image size before it starts.
+     */
+    public void setPrefetchLimits(int maxConcurrent, long maxBytesPerSecond) {
+        prefetcher.setLimits(maxConcurrent, maxBytesPerSecond);
+    }
+
+    /**
+     * Create request and queue it with given priority.
+     *
+     * @param decode false if only the file is needed
+     */
+    ImageRequest request(final ImageChooser info, Priority priority, boolean decode) {
+        info.setCancelled(false);
+        ImageRequest request = new ImageRequest(info, bitmapPool, decode);
+        if (TextUtils.isEmpty(info.url)) {
+            e("request: Image url or file name empty");
+            request.fail(400);
+            return request;
+        }
+        if (decode) {
+            Bitmap cached = memoryCache.getAndAcquire(info.getMemoryCacheKey());
+            if (cached != null) {
+                d("MemoryCache hit[%s]", info.url);
+                revalidateIfStale(info);
+                request.complete(cached);
+                return request;
+            }
+        } else if (hasImage(info)) {
+            revalidateIfStale(info);
+            request.complete(null);
+            return request;
+        }
+        request.setCanceller(new Runnable() {
             @Override
             public void run() {
-                loadImage(info, null);
+                cancelUnwantedDownload(info.url);
             }
         });
+        pendingRequests.add(request);
+        request.addListener(new ImageRequestListener() {
+
+            @Override
+            public void onProgress(ImageRequest request, float progress) {
+            }
+
+            @Override
+            public void onComplete(ImageRequest request, Bitmap bitmap) {
+                pendingRequests.remove(request);
+            }
+
+            @Override
+            public void onFail(ImageRequest request, int statusCode) {
+                pendingRequests.remove(request);
+            }
 
+        }, ImageRequest.DIRECT);
+        scheduler.offer(info, priority, TASK_REQUEST, request);
+        return request;
     }
 
     /**
@@ -421,6 +1049,13 @@ public class ChoicelyImageService extends ChoicelyLogService {
      * @param info ImageInformation
      */
     public void loadImage(final ImageChooser info, final ImageLoadListener mainLoadListener) {
+        loadImage(info, mainLoadListener, false);
+    }
+
+    /**
+     * @param cancellable true if download can be cancelled when no view waits for it anymore
+     */
+    private void loadImage(final ImageChooser info, final ImageLoadListener mainLoadListener, boolean cancellable) {
         File resultFile = null;
         if (TextUtils.isEmpty(info.url)) {
             e("loadImage: Image url or file name empty");
@@ -436,6 +1071,7 @@ public class ChoicelyImageService extends ChoicelyLogService {
         if (hasImage(info)) {
             d("[%s]image already loaded", info.url);
             resultFile = getImageFile(info);
+            revalidateIfStale(info);
 
             if (mainLoadListener != null) {
                 mainLoadListener.onSuccess(resultFile);
@@ -446,107 +1082,163 @@ public class ChoicelyImageService extends ChoicelyLogService {
             return;
         }
 
-        synchronized (loading) {
-            if (loading.contains(info.url)) {
-                w("Already loading url[%s]", info.url);
-                addDownloadCompleteListener(info.url, info.loadListener);
-                addDownloadCompleteListener(info.url, mainLoadListener);
-                return;
+        Integer failedStatus = negativeCache.get(info.url);
+        if (failedStatus != null) {
+            d("[%s]Failed recently[%d], not loaded", info.url, failedStatus);
+            if (mainLoadListener != null) {
+                mainLoadListener.onFail(failedStatus);
+            }
+            if (info.loadListener != null) {
+                info.loadListener.onFail(failedStatus);
             }
-            loading.add(info.url);
+            return;
+        }
+
+        final PendingDownload download = new PendingDownload(info.url, !cancellable || info.loadListener != null);
+        download.addListener(mainLoadListener);
+        download.addListener(info.loadListener);
+        PendingDownload existing = downloads.putIfAbsent(info.url, download);
+        if (existing != null) {
+            w("Already loading url[%s]", info.url);
+            if (!cancellable && (info.loadListener != null || mainLoadListener != null)) {
+                // somebody else needs the file too
+                existing.setRequired();
+            }
+            existing.addListener(mainLoadListener);
+            existing.addListener(info.loadListener);
+            return;
         }
         d("Load: %s", info.url);
-        final File file = getImageFile(info);
-        Request.Builder requestBuilder = new Request.Builder();
-        Request r = requestBuilder.url(info.url).get().build();
-        Response response;
-        try {
+        performDownload(info, download);
+    }
+
+    /**
+     * Make one attempt of the download. Failure that the {@link RetryPolicy} allows to retry
+     * leaves the download pending and schedules the next attempt, otherwise download is
+     * finished.
+     */
+    private void performDownload(final ImageChooser info, final PendingDownload download) {
+        File resultFile = null;
+        final File file = getImageFile(info);
+        int attempt = download.startAttempt();
+        Request.Builder requestBuilder = new Request.Builder().url(info.url).get();
+        OkFileProgressHandler.addResumeHeaders(requestBuilder, file);
+        Request r = requestBuilder.build();
+        Call call = web.newCall(r);
+        download.setCall(call);
+        String host = HostLimiter.getHost(info.url);
+        long requestTime = SystemClock.elapsedRealtime();
+        long latency = -1;
+        Response response;
+        try {
             TrafficStats.setThreadStatsTag(CIS_SOCKET_TAG_ID);
-            response = web.newCall(r).execute();
+            response = call.execute();
+            latency = SystemClock.elapsedRealtime() - requestTime;
         } catch (Exception e) {
-            w(e, "Problem performing request[%s]", info.url);
+            if (call.isCanceled()) {
+                d("[%s]Cancelled", info.url);
+            } else {
+                w(e, "Problem performing request[%s]", info.url);
+            }
             response = null;
         }
-        int statusCode;
-        boolean success;
+        int statusCode = -1;
+        long retryAfter = -1;
+        boolean success = false;
+        boolean writeFailed = false; // response was fine but could not be stored
+        CacheMetadata metadata = null;
         if (response != null && response.isSuccessful()) {
             // Handle success
-            success = true;
             statusCode = response.code();
+            metadata = CacheMetadata.fromResponse(response);
             resultFile = new OkFileProgressHandler(file) {
 
                 @Override
                 public void onProgress(float progress) {
 //                    super.onProgress(progress);
                     instance.d("[%s]LoadingProgress[%s]", info.url, Float.toString(progress));
-
-                    if (mainLoadListener != null) {
-                        mainLoadListener.onProgress(progress);
-                    }
-                    if (info.loadListener != null) {
-                        info.loadListener.onProgress(progress);
-                    }
+                    download.onProgress(progress);
                 }
 
             }.handleResponse(response);
-
-            if (mainLoadListener != null) {
-                mainLoadListener.onSuccess(resultFile);
-            }
-            if (info.loadListener != null) {
-                info.loadListener.onSuccess(resultFile);
-            }
-        } else {
-            // Handle error
-            success = false;
-            statusCode = -1;
-            if (response != null) {
-                statusCode = response.code();
-                ChoicelyStaticUtils.close(response.body());
-            }
-            if (mainLoadListener != null) {
-                mainLoadListener.onFail(statusCode);
+            success = resultFile != null;
+            if (!success) {
+                w("[%s]Response body could not be written", info.url);
+                statusCode = -1;
+                writeFailed = true;
+                // retry writes to the folder if it was deleted
+                restoreFolder(file);
             }
-            if (info.loadListener != null) {
-                info.loadListener.onFail(statusCode);
+        } else if (response != null) {
+            statusCode = response.code();
+            if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                // partial file does not match the resource anymore, start over next time
+                OkFileProgressHandler.deletePartial(file);
             }
-
+            retryAfter = RetryPolicy.getRetryAfter(response);
+            ChoicelyStaticUtils.close(response.body());
         }
 
-        notifyDownloadFinished(info.url, success, statusCode, resultFile);
-        loadingReady(info.url);
-    }
-
-    private void addDownloadCompleteListener(String url, ImageLoadListener loadListener) {
-        if (TextUtils.isEmpty(url) || loadListener == null) {
+        if (latency >= 0) {
+            hostLimiter.record(host, latency, SystemClock.elapsedRealtime() - requestTime,
+                    success ? resultFile.length() : 0, success);
+        } else if (!call.isCanceled()) {
+            hostLimiter.record(host, SystemClock.elapsedRealtime() - requestTime, 0, 0, false);
+        }
+        if (!success && !call.isCanceled() && scheduleRetry(info, download, statusCode, retryAfter)) {
             return;
         }
-        synchronized (onDownloadReadyWaitMap) {
-            List<ImageLoadListener> list = onDownloadReadyWaitMap.get(url);
-            if (list == null) {
-                list = new ArrayList<>();
+        if (success) {
+            negativeCache.remove(info.url);
+            commitToDiskCache(info, resultFile, metadata);
+        } else {
+            if (attempt > 1) {
+                w("[%s]Failed[%d] after %d attempts", info.url, statusCode, attempt);
+            }
+            // only failures of the server or network that are not retried any more are remembered,
+            // not retries skipped because nobody waits or local write errors
+            if (!call.isCanceled() && !writeFailed
+                    && retryPolicy.getRetryDelay(download.getAttempts(), statusCode, retryAfter) < 0) {
+                negativeCache.put(info.url, statusCode);
             }
-            list.add(loadListener);
-            onDownloadReadyWaitMap.put(url, list);
         }
+        download.finish(success, statusCode, resultFile);
+        loadingReady(download);
     }
 
-    private void notifyDownloadFinished(String url, boolean success, int statusCode, File file) {
-        synchronized (onDownloadReadyWaitMap) {
-            List<ImageLoadListener> list = onDownloadReadyWaitMap.get(url);
-            if (list != null) {
-                for (ImageLoadListener listener : list) {
-                    if (listener != null) {
-                        if (success) {
-                            listener.onSuccess(file);
-                        } else {
-                            listener.onFail(statusCode);
-                        }
-                    }
+    /**
+     * Schedule next attempt of a failed download if the retry policy allows it and somebody
+     * still waits for the download. Download thread is not held while waiting, the retry is
+     * queued to the scheduler when the wait is over.
+     *
+     * @return true if retry was scheduled and download is left pending
+     */
+    private boolean scheduleRetry(final ImageChooser info, final PendingDownload download, int statusCode, long retryAfter) {
+        long delay = retryPolicy.getRetryDelay(download.getAttempts(), statusCode, retryAfter);
+        if (delay < 0) {
+            return false;
+        }
+        if (!download.isWanted() && !hasWaitingViews(info.url)) {
+            d("[%s]Not retried, nobody waiting", info.url);
+            return false;
+        }
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                if (download.takeRetry(this) == null) {
+                    // cancelled while waiting
+                    return;
                 }
+                Priority priority = hasWaitingViews(info.url) ? Priority.VISIBLE : Priority.PREFETCH;
+                scheduler.offer(info, info.getPriority(priority), TASK_RETRY);
             }
-            onDownloadReadyWaitMap.put(url, null);
+        };
+        if (!download.waitRetry(retry, statusCode)) {
+            return false;
         }
+        w("[%s]Failed[%d], retry %d in %dms", info.url, statusCode, download.getAttempts() + 1, delay);
+        uiHandler.postDelayed(retry, delay);
+        return true;
     }
 
     /**
@@ -635,45 +1327,35 @@ public class ChoicelyImageService extends ChoicelyLogService {
         }
         String originPath = file.getAbsolutePath();
         d("HQ Scaling down: %s", originPath);
-        // We decode the image size first so we can scale it correctly
-        // Without this we run out of memory fast
-        Options opt = new Options();
-        opt.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(originPath, opt);
-        double scale = 1;
-        if (opt.outWidth > opt.outHeight && opt.outWidth > maxDimension) {
-            scale = (double) maxDimension / (double) opt.outWidth;
-        } else if (opt.outHeight > maxDimension) {
-            scale = (double) maxDimension / (double) opt.outHeight;
-        }
-        int dstWidth = (int) (opt.outWidth * scale);
-        int dstHeight = (int) (opt.outHeight * scale);
-        int sampleSize = 1;
-        if (opt.outHeight > 2 * maxDimension || opt.outWidth > 2 * maxDimension) {
-            sampleSize = (int) Math.pow(
-                    2,
-                    (int) Math.round(Math.log((2 * maxDimension) / (double) Math.max(opt.outHeight, opt.outWidth))
-                            / Math.log(0.5)));
+        // size and rotation are read from the header of the same read that is decoded
+        EncodedImage encoded = readEncodedImage(file, 0, false, null);
+        if (encoded == null) {
+            return null;
+        }
+        Options opt = encoded.bounds;
+        float scale = 1f;
+        int maxSide = Math.max(opt.outWidth, opt.outHeight);
+        if (maxSide > maxDimension) {
+            scale = maxDimension / (float) maxSide;
         }
 
+        // decoded straight to the target size, no full size bitmap to scale afterwards
         Options opt2 = new Options();
-        opt2.inSampleSize = sampleSize;
+        setScaleOptions(opt2, opt, scale);
         opt2.inPreferredConfig = bitmapConfig;
 
         Bitmap bm = null;
         try {
-            bm = Bitmap.createScaledBitmap(BitmapFactory.decodeFile(originPath, opt2), dstWidth, dstHeight, true);
+            bm = decodeEncoded(encoded, opt2);
         } catch (OutOfMemoryError e) {
             callGC();
             w("Memory running low.");
         }
 
-        int rotation = getExifRotation(new File(originPath));
+        int rotation = encoded.rotation;
         if (bm != null && rotation != 0) {
             d("image[%s] rotating[%s]", originPath, rotation);
-            android.graphics.Matrix matrix = new android.graphics.Matrix();
-            matrix.postRotate(rotation);
-            bm = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), matrix, true);
+            bm = transform(bm, rotation, 0, 0);
         }
 
         return bm;
@@ -691,19 +1373,13 @@ public class ChoicelyImageService extends ChoicelyLogService {
             return null;
         }
         String originPath = file.getAbsolutePath();
-        // We decode the image size first so we can scale it correctly
-        // Without this we run out of memory fast
-        Options opt = getBitmapOptions(file);
-        int scale = 1;
-        if (opt.outHeight > maxDimension || opt.outWidth > maxDimension) {
-            scale = (int) Math.pow(
-                    2,
-                    (int) Math.round(Math.log(maxDimension / (double) Math.max(opt.outHeight, opt.outWidth))
-                            / Math.log(0.5)));
-
-            // If target size is smaller than origin then scale should be at least two
-            scale = Math.max(scale, 2);
+        // size and rotation are read from the header of the same read that is decoded
+        EncodedImage encoded = readEncodedImage(file, maxDimension, false, null);
+        if (encoded == null) {
+            return null;
         }
+        Options opt = encoded.bounds;
+        int scale = getSampleSize(opt, maxDimension);
 
         Options opt2 = new Options();
         opt2.inSampleSize = scale;
@@ -712,22 +1388,169 @@ public class ChoicelyImageService extends ChoicelyLogService {
         d("max[%d]sample[%d]origin[%d, %d]image[%s]path[%s]", maxDimension, scale, opt.outWidth, opt.outHeight, originPath, originPath);
         Bitmap bm = null;
         try {
-            bm = BitmapFactory.decodeFile(originPath, opt2);
+            bm = decodeEncoded(encoded, opt2);
         } catch (OutOfMemoryError e) {
             callGC();
             e("Memory running low.");
         }
-        int rotation = getExifRotation(new File(originPath));
+        int rotation = encoded.rotation;
         if (bm != null && rotation != 0) {
             d("image[%s] rotating[%s]", originPath, rotation);
-            android.graphics.Matrix matrix = new android.graphics.Matrix();
-            matrix.postRotate(rotation);
-            bm = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), matrix, true);
+            bm = transform(bm, rotation, 0, 0);
         }
 
         return bm;
     }
 
+    /**
+     * Power of two sample size that decodes image close to maxDimension.
+     *
+     * @param bounds Options with outWidth and outHeight of the image
+     */
+    private static int getSampleSize(Options bounds, int maxDimension) {
+        int scale = 1;
+        if (bounds.outHeight > maxDimension || bounds.outWidth > maxDimension) {
+            scale = (int) Math.pow(
+                    2,
+                    (int) Math.round(Math.log(maxDimension / (double) Math.max(bounds.outHeight, bounds.outWidth))
+                            / Math.log(0.5)));
+
+            // If target size is smaller than origin then scale should be at least two
+            scale = Math.max(scale, 2);
+        }
+        return scale;
+    }
+
+    /**
+     * Scale that shows the image in the target size of the request with its scale type.
+     * Images are never scaled up.
+     *
+     * @param bounds   Options with outWidth and outHeight of the image
+     * @param rotation Rotation applied to the image after decoding
+     */
+    private static float getTargetScale(Options bounds, int rotation, ImageChooser info) {
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (rotation == 90 || rotation == 270) {
+            width = bounds.outHeight;
+            height = bounds.outWidth;
+        }
+        float scaleX = info.targetWidth / (float) width;
+        float scaleY = info.targetHeight / (float) height;
+        float scale;
+        ImageView.ScaleType scaleType = info.targetScaleType;
+        if (scaleType == ImageView.ScaleType.CENTER_CROP || scaleType == ImageView.ScaleType.FIT_XY) {
+            // image fills the view, cropped or stretched
+            scale = Math.max(scaleX, scaleY);
+        } else if (scaleType == ImageView.ScaleType.CENTER || scaleType == ImageView.ScaleType.MATRIX) {
+            // image is not scaled by the view
+            scale = 1f;
+        } else {
+            scale = Math.min(scaleX, scaleY);
+        }
+        return Math.min(1f, scale);
+    }
+
+    /**
+     * Set options to decode image scaled down by the given factor in one pass. Power of two
+     * sample size gets close to the size and density scaling of the decoder does the rest.
+     *
+     * @param opt    Options used for the decode
+     * @param bounds Options with outWidth and outHeight of the image
+     * @param scale  Scale between (0, 1)
+     * @return true if image is scaled down
+     */
+    private static boolean setScaleOptions(Options opt, Options bounds, float scale) {
+        if (scale <= 0f || scale >= 1f) {
+            return false;
+        }
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        opt.inSampleSize = sampleSize;
+        int maxSide = Math.max(bounds.outWidth, bounds.outHeight);
+        int sampled = (maxSide + sampleSize - 1) / sampleSize;
+        int target = Math.max(1, Math.round(maxSide * scale));
+        if (target < sampled) {
+            opt.inScaled = true;
+            opt.inDensity = sampled;
+            opt.inTargetDensity = target;
+        }
+        return true;
+    }
+
+    /**
+     * Rotate decoded image and crop it around the center in one draw to a pooled bitmap. The
+     * decoded bitmap is put back to the pool, so only one extra bitmap of the result size is
+     * needed instead of a rotated copy of the whole image.
+     *
+     * @param source     Decoded mutable bitmap, not shared with anybody
+     * @param rotation   Clockwise rotation in degrees, multiple of 90
+     * @param cropWidth  Maximum width of the result, zero to not crop
+     * @param cropHeight Maximum height of the result, zero to not crop
+     * @return Transformed bitmap, or the source if there is nothing to do
+     */
+    private Bitmap transform(Bitmap source, int rotation, int cropWidth, int cropHeight) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int width = swap ? source.getHeight() : source.getWidth();
+        int height = swap ? source.getWidth() : source.getHeight();
+        int dstWidth = cropWidth > 0 ? Math.min(width, cropWidth) : width;
+        int dstHeight = cropHeight > 0 ? Math.min(height, cropHeight) : height;
+        if (rotation == 0 && dstWidth == width && dstHeight == height) {
+            return source;
+        }
+        Config config = source.getConfig() != null ? source.getConfig() : Config.ARGB_8888;
+        Bitmap result = createPooledBitmap(dstWidth, dstHeight, config);
+        Matrix matrix = new Matrix();
+        matrix.postTranslate(-source.getWidth() / 2f, -source.getHeight() / 2f);
+        matrix.postRotate(rotation);
+        matrix.postTranslate(dstWidth / 2f, dstHeight / 2f);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
+        result.setHasAlpha(source.hasAlpha());
+        bitmapPool.put(source);
+        return result;
+    }
+
+    /**
+     * Copy bitmap to a pooled bitmap of the same size. The copy is not shared with anybody.
+     */
+    private Bitmap copyBitmap(Bitmap source) {
+        Config config = source.getConfig() != null ? source.getConfig() : Config.ARGB_8888;
+        Bitmap copy = createPooledBitmap(source.getWidth(), source.getHeight(), config);
+        Canvas canvas = new Canvas(copy);
+        canvas.drawBitmap(source, 0, 0, null);
+        canvas.setBitmap(null);
+        copy.setHasAlpha(source.hasAlpha());
+        return copy;
+    }
+
+    /**
+     * Get cleared bitmap of exactly the given size from the pool, or create one.
+     */
+    private Bitmap createPooledBitmap(int width, int height, Config config) {
+        Bitmap result = bitmapPool.get(width, height, config);
+        if (result != null && (result.getWidth() != width || result.getHeight() != height)) {
+            if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+                result.reconfigure(width, height, config);
+            } else {
+                bitmapPool.put(result);
+                result = null;
+            }
+        }
+        if (result == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        result.eraseColor(Color.TRANSPARENT);
+        return result;
+    }
+
+    private static boolean isDensityScaled(Options opt) {
+        return opt.inScaled && opt.inDensity > 0 && opt.inTargetDensity > 0 && opt.inDensity != opt.inTargetDensity;
+    }
+
     public static Bitmap scaleBitmapDown(Bitmap realImage, float maxImageSize) {
         float ratio = Math.min(
                 maxImageSize / (float) realImage.getWidth(),
@@ -738,12 +1561,103 @@ public class ChoicelyImageService extends ChoicelyLogService {
         return Bitmap.createScaledBitmap(realImage, width, height, true);
     }
 
-    private Options getBitmapOptions(File file) {
-        Options opt = new Options();
-        opt.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+    /**
+     * Decode image read by {@link #readEncodedImage(File, int, boolean, File)} and release its
+     * read buffers.
+     */
+    private Bitmap decodeEncoded(EncodedImage encoded, Options opt) {
+        try {
+            return decode(encoded.file, encoded.data, encoded.dataLength, encoded.stream, encoded.bounds, opt);
+        } finally {
+            releaseEncoded(encoded);
+        }
+    }
 
-        return opt;
+    private void releaseEncoded(EncodedImage encoded) {
+        if (encoded.data != null) {
+            byteArrayPool.put(encoded.data);
+        }
+        if (encoded.stream != null) {
+            ChoicelyStaticUtils.close(encoded.stream);
+        }
+    }
+
+    /**
+     * Decode image reusing a pooled bitmap when possible. Density of a bitmap scaled with
+     * {@link #setScaleOptions(Options, Options, float)} is cleared, so it is drawn in its pixel
+     * size like any other decoded bitmap.
+     *
+     * @param file   Image file
+     * @param data   Content of the file if already read, null to read the file
+     * @param length Length of the content in data
+     * @param stream Stream of the file positioned at the start, used when data is null
+     * @param bounds Options with outWidth and outHeight of the image
+     * @param opt    Options used for the decode
+     * @return Decoded mutable bitmap or null if image could not be decoded
+     */
+    private Bitmap decode(File file, @Nullable byte[] data, int length, @Nullable InputStream stream, Options bounds, Options opt) {
+        String path = file.getAbsolutePath();
+        int sampleSize = Math.max(1, opt.inSampleSize);
+        boolean densityScaled = isDensityScaled(opt);
+        if (VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
+            opt.inMutable = true;
+            // before KitKat density scaling is done after decoding, to a new bitmap
+            if (BitmapPool.canReuseWithSampleSize(sampleSize) && isReusableFormat(bounds)
+                    && (!densityScaled || VERSION.SDK_INT >= VERSION_CODES.KITKAT)) {
+                int width = (bounds.outWidth + sampleSize - 1) / sampleSize;
+                int height = (bounds.outHeight + sampleSize - 1) / sampleSize;
+                if (densityScaled) {
+                    float density = opt.inTargetDensity / (float) opt.inDensity;
+                    width = (int) (width * density + 0.5f);
+                    height = (int) (height * density + 0.5f);
+                }
+                opt.inBitmap = bitmapPool.get(width, height, opt.inPreferredConfig);
+            }
+        }
+        Bitmap bm;
+        byte[] tempStorage = byteArrayPool.get(DECODE_TEMP_STORAGE);
+        opt.inTempStorage = tempStorage;
+        try {
+            if (data != null) {
+                bm = BitmapFactory.decodeByteArray(data, 0, length, opt);
+            } else if (stream != null) {
+                bm = BitmapFactory.decodeStream(stream, null, opt);
+            } else {
+                bm = BitmapFactory.decodeFile(path, opt);
+            }
+        } catch (IllegalArgumentException e) {
+            if (opt.inBitmap == null) {
+                byteArrayPool.put(tempStorage);
+                throw e;
+            }
+            d("Pooled bitmap could not be reused for[%s]", path);
+            bitmapPool.put(opt.inBitmap);
+            opt.inBitmap = null;
+            // stream may have been consumed, file is opened again in this rare case
+            bm = data != null ? BitmapFactory.decodeByteArray(data, 0, length, opt) : BitmapFactory.decodeFile(path, opt);
+        }
+        opt.inTempStorage = null;
+        byteArrayPool.put(tempStorage);
+        if (bm == null && opt.inBitmap != null) {
+            bitmapPool.put(opt.inBitmap);
+        }
+        opt.inBitmap = null;
+        if (bm != null && densityScaled) {
+            bm.setDensity(Bitmap.DENSITY_NONE);
+        }
+
+        return bm;
+    }
+
+    private boolean isReusableFormat(Options bounds) {
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return false;
+        }
+        if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+            return true;
+        }
+        // before KitKat only jpeg and png can be decoded into existing bitmap
+        return "image/jpeg".equals(bounds.outMimeType) || "image/png".equals(bounds.outMimeType);
     }
 
     /**
@@ -792,12 +1706,13 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 opt.inPreferredConfig = Config.ARGB_8888;
             }
 
-            bm = BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
-            int rotation = getExifRotation(file);
-            if (rotation != 0) {
-                android.graphics.Matrix matrix = new android.graphics.Matrix();
-                matrix.postRotate(rotation);
-                bm = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), matrix, true);
+            EncodedImage encoded = readEncodedImage(file, 0, false, null);
+            if (encoded != null) {
+                bm = decodeEncoded(encoded, opt);
+            }
+            int rotation = encoded != null ? encoded.rotation : 0;
+            if (bm != null && rotation != 0) {
+                bm = transform(bm, rotation, 0, 0);
             }
         } catch (OutOfMemoryError e) {
             w("Running out of memory");
@@ -822,8 +1737,46 @@ public class ChoicelyImageService extends ChoicelyLogService {
             return;
         }
         imageView.clearAnimation();
+        info.setCancelled(false);
+        ImageChooser previous = viewRequests.put(imageView, info);
+        if (previous != null && previous != info) {
+            cancelRequest(imageView, previous);
+        }
+        if (prefetchPauseLevel >= TRIM_MEMORY_BACKGROUND) {
+            // images are requested again so application is back in foreground
+            resumePrefetch();
+        }
+        if (info.fitToView && !TextUtils.isEmpty(info.url) && !measureTarget(info, imageView) && !info.hasTargetSize()) {
+            if (info.isUseDefaultResource()) {
+                imageView.setImageResource(info.defResource);
+                clearDisplayedBitmap(imageView);
+            }
+            imageView.setTag(R.id.cis_tag_id, info.url);
+            waitForLayout(info, imageView);
+            return;
+        }
+        loadToView(info, imageView);
+    }
+
+    /**
+     * Set image from memory cache or start loading it for the view.
+     */
+    private void loadToView(final ImageChooser info, final ImageView imageView) {
+        if (!TextUtils.isEmpty(info.url)) {
+            Bitmap cached = memoryCache.getAndAcquire(info.getMemoryCacheKey());
+            if (cached != null) {
+                d("MemoryCache hit[%s]", info.url);
+                revalidateIfStale(info);
+                imageView.setTag(R.id.cis_tag_id, info.url);
+                imageView.setImageBitmap(cached);
+                setDisplayedBitmap(imageView, cached, 0);
+                notifyImageReady(info, cached);
+                return;
+            }
+        }
         if (info.isUseDefaultResource()) {
             imageView.setImageResource(info.defResource);
+            clearDisplayedBitmap(imageView);
         }
         imageView.setTag(R.id.cis_tag_id, TextUtils.isEmpty(info.url) ? EMPTY_IMAGE_TAG : info.url);
 
@@ -831,12 +1784,24 @@ public class ChoicelyImageService extends ChoicelyLogService {
             d("url empty");
             if (!info.isUseDefaultResource() && info.assignFailResource != null) {
                 imageView.setImageResource(info.assignFailResource);
+                clearDisplayedBitmap(imageView);
             }
             notifyImageReady(info, null);
             return;
         }
 
-        assignPool.execute(new Runnable() {
+        Integer failedStatus = negativeCache.get(info.url);
+        if (failedStatus != null) {
+            d("[%s]Failed recently[%d]", info.url, failedStatus);
+            if (info.assignFailResource != null) {
+                imageView.setImageResource(info.assignFailResource);
+                clearDisplayedBitmap(imageView);
+            }
+            notifyImageReady(info, null);
+            return;
+        }
+
+        ioPool.execute(new Runnable() {
 
             @Override
             public void run() {
@@ -849,20 +1814,7 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 // note: thumbnail can not have thumbnail
                 if (!hasImage(info) && info.hasThumbnail()) {
                     final ImageChooser thumbnail = info.getThumbnail();
-                    thumbnail.setImageServiceListener(new ImageServiceListener() {
-                        @Override
-                        public void imageReady(String imageUrl, Bitmap image, int defaultResId) {
-                            d("Thumbnail[%s] ready", imageUrl);
-                            info.setEnterAnimation(null); // clear enter animation if thumbnail assign was success
-                            setImage(info, weakImage);
-                        }
-
-                        @Override
-                        public void imageError(String imageUrl, int resultCode) {
-                            w("Thumbnail[%s] error", imageUrl);
-                            setImage(info, weakImage);
-                        }
-                    });
+                    thumbnail.setImageServiceListener(new ThumbnailListener(info, weakImage));
 
                     if (!TextUtils.isEmpty(thumbnail.url)) {
                         d("ImageThumbnail[%s]", thumbnail.url);
@@ -875,31 +1827,249 @@ public class ChoicelyImageService extends ChoicelyLogService {
         });
     }
 
+    /**
+     * Read size and scale type of the view to the request, so that the image is decoded to the
+     * size it is shown in.
+     *
+     * @return false if the view has no size yet
+     */
+    private static boolean measureTarget(ImageChooser info, ImageView view) {
+        int width = view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
+        int height = view.getHeight() - view.getPaddingTop() - view.getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        info.setTargetSize(width, height, view.getScaleType());
+        return true;
+    }
+
+    /**
+     * Continue loading when the view is about to be drawn and its layout size is known. View
+     * that still has no size gets the image without a target size.
+     */
+    private void waitForLayout(final ImageChooser info, final ImageView view) {
+        d("[%s]Waiting for layout", info.url);
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                ViewTreeObserver observer = view.getViewTreeObserver();
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                if (viewRequests.get(view) != info || info.cancelled) {
+                    d("[%s]View rebound before layout", info.url);
+                    return true;
+                }
+                if (!measureTarget(info, view)) {
+                    w("[%s]View has no size, decoding without target size", info.url);
+                }
+                loadToView(info, view);
+                return true;
+            }
+        });
+    }
+
     public void clearTag(ImageView imageView) {
         imageView.setTag(R.id.cis_tag_id, null);
+        ImageChooser previous = viewRequests.remove(imageView);
+        if (previous != null) {
+            cancelRequest(imageView, previous);
+        }
     }
 
-    private void setImage(final ImageChooser info, final WeakReference<ImageView> weakImage) {
-        synchronized (mappedViews) {
-            addViewToMap(info, weakImage);
+    /**
+     * Pause requests with the tag, for example while a list is flung. Paused requests are
+     * queued but not started until the tag is resumed. Images already in the memory cache are
+     * still set right away.
+     *
+     * @param tag Tag set with {@link ImageChooser#setTag(Object)}
+     */
+    public void pause(@NonNull Object tag) {
+        scheduler.pause(tag);
+    }
+
+    /**
+     * Resume requests with the tag. Requests of views that were rebound while paused are
+     * dropped, the rest of the view requests are started first.
+     *
+     * @param tag Tag set with {@link ImageChooser#setTag(Object)}
+     */
+    public void resume(@NonNull Object tag) {
+        List<RequestScheduler.Task> tasks = scheduler.resume(tag);
+        int dropped = 0;
+        for (RequestScheduler.Task task : tasks) {
+            if (task.type == TASK_LOAD || task.type == TASK_ASSIGN) {
+                if (!hasWaitingViews(task.info.url)) {
+                    dropped++;
+                    continue;
+                }
+                scheduler.requeue(task, Priority.VISIBLE);
+            } else if (task.type == TASK_REQUEST && (task.request == null || task.request.isDone())) {
+                dropped++;
+            } else {
+                scheduler.requeue(task, task.priority);
+            }
         }
-        boolean isLoading;
-        synchronized (loading) {
-            isLoading = loading.contains(info.url);
+        d("Resume[%s] %d requests, %d dropped", tag, tasks.size() - dropped, dropped);
+    }
+
+    public boolean isPaused(@NonNull Object tag) {
+        return scheduler.isPaused(tag);
+    }
+
+    /**
+     * Cancel all requests with the tag, for example when the screen showing them is destroyed.
+     * Queued requests are dropped, decodes not yet started are skipped and downloads nobody
+     * else needs are cancelled. Views of the requests are left as they are. A paused tag is
+     * resumed, requests made with the tag after this are loaded normally.
+     *
+     * @param tag Tag set with {@link ImageChooser#setTag(Object)}
+     * @see RequestGroup
+     */
+    public void cancel(@NonNull Object tag) {
+        Set<String> urls = new HashSet<>();
+
+        List<ImageView> views = new ArrayList<>();
+        synchronized (viewRequests) {
+            for (Map.Entry<ImageView, ImageChooser> entry : viewRequests.entrySet()) {
+                ImageChooser info = entry.getValue();
+                if (entry.getKey() != null && tag.equals(info.tag)) {
+                    info.setCancelled(true);
+                    views.add(entry.getKey());
+                }
+            }
+        }
+        for (ImageView view : views) {
+            clearTag(view);
         }
 
-        if (isLoading || hasImage(info)) {
-            synchronized (taskStack) {
-                d("pushing task[%s]", info.url);
-                taskStack.push(info);
+        int requests = 0;
+        for (ImageRequest request : pendingRequests) {
+            ImageChooser info = request.getImageChooser();
+            if (tag.equals(info.tag)) {
+                info.setCancelled(true);
+                if (request.cancel(true)) {
+                    requests++;
+                }
             }
-        } else {
-            synchronized (priorityStack) {
-                d("pushing priority task[%s]", info.url);
-                priorityStack.push(info);
+        }
+
+        List<RequestScheduler.Task> waiting = scheduler.findTasks(tag);
+        waiting.addAll(hostLimiter.findWaiting(tag));
+        for (RequestScheduler.Task task : waiting) {
+            if (task.type != TASK_REVALIDATE && task.type != TASK_RETRY) {
+                // dropped when dispatched
+                task.info.setCancelled(true);
+                urls.add(task.info.url);
+            }
+        }
+
+        List<RequestScheduler.Task> held = scheduler.clear(tag);
+        for (RequestScheduler.Task task : held) {
+            if (task.type == TASK_REVALIDATE || task.type == TASK_RETRY) {
+                // revalidation keeps the cache fresh for everybody, retries finish their download
+                scheduler.requeue(task, task.priority);
+            } else {
+                task.info.setCancelled(true);
+                urls.add(task.info.url);
+            }
+        }
+
+        synchronized (pausedPrefetch) {
+            Iterator<ImageChooser> iterator = pausedPrefetch.iterator();
+            while (iterator.hasNext()) {
+                if (tag.equals(iterator.next().tag)) {
+                    iterator.remove();
+                }
             }
         }
-        nextTask();
+        int prefetches = prefetcher.cancel(tag);
+
+        for (String url : urls) {
+            cancelUnwantedDownload(url);
+        }
+        d("Cancel[%s] views[%d] requests[%d] held[%d] prefetches[%d]", tag, views.size(), requests, held.size(), prefetches);
+    }
+
+    /**
+     * Check is the request, or its thumbnail, still the one wanted by the view.
+     */
+    private boolean isCurrentRequest(ImageView view, ImageChooser info) {
+        if (info.cancelled) {
+            return false;
+        }
+        ImageChooser current = viewRequests.get(view);
+        return current == null || current == info || current.getThumbnail() == info;
+    }
+
+    /**
+     * Stop waiting for the previous request of a rebound view. Download is cancelled when no
+     * other view or listener needs it, queued decodes notice the view has moved on and skip.
+     */
+    private void cancelRequest(ImageView view, ImageChooser previous) {
+        cancelViewRequest(view, previous.url);
+        if (previous.hasThumbnail()) {
+            cancelViewRequest(view, previous.getThumbnail().url);
+        }
+    }
+
+    private void cancelViewRequest(ImageView view, String url) {
+        if (TextUtils.isEmpty(url)) {
+            return;
+        }
+        synchronized (mappedViews) {
+            List<Pair<ImageChooser, WeakReference<ImageView>>> list = mappedViews.get(url);
+            if (list != null) {
+                Iterator<Pair<ImageChooser, WeakReference<ImageView>>> iterator = list.iterator();
+                while (iterator.hasNext()) {
+                    ImageView waitingView = iterator.next().second.get();
+                    if (waitingView == null || waitingView == view) {
+                        iterator.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    mappedViews.remove(url);
+                }
+            }
+        }
+        cancelUnwantedDownload(url);
+    }
+
+    /**
+     * Cancel download of the url if no view, request or listener waits for it.
+     */
+    private void cancelUnwantedDownload(String url) {
+        PendingDownload download = downloads.get(url);
+        if (download != null && !download.isWanted() && !hasWaitingViews(url)) {
+            d("[%s]Cancelling download, nobody waiting", url);
+            download.cancel();
+            Runnable retry = download.takeRetry(null);
+            if (retry != null) {
+                // waiting for a retry, finish now instead
+                uiHandler.removeCallbacks(retry);
+                download.finish(false, download.getFailedStatusCode(), null);
+                loadingReady(download);
+            }
+        }
+    }
+
+    private boolean hasWaitingViews(String url) {
+        synchronized (mappedViews) {
+            return mappedViews.containsKey(url);
+        }
+    }
+
+    private void setImage(final ImageChooser info, final WeakReference<ImageView> weakImage) {
+        ImageView view = weakImage.get();
+        if (view == null || !isCurrentRequest(view, info)) {
+            d("[%s]View rebound before request was queued", info.url);
+            return;
+        }
+        synchronized (mappedViews) {
+            addViewToMap(info, weakImage);
+        }
+        boolean isLoading = downloads.containsKey(info.url);
+        scheduler.offer(info, info.getPriority(Priority.VISIBLE), isLoading || hasImage(info) ? TASK_ASSIGN : TASK_LOAD);
     }
 
     private void addViewToMap(ImageChooser info, WeakReference<ImageView> weakImage) {
@@ -911,84 +2081,317 @@ public class ChoicelyImageService extends ChoicelyLogService {
         mappedViews.put(info.url, list);
     }
 
-    private void loadingReady(String url) {
-        synchronized (loading) {
-            loading.remove(url);
+    private void loadingReady(PendingDownload download) {
+        downloads.remove(download.url, download);
+        scheduler.unpark(download.url);
+        i("Image [%s] download complete", download.url);
+    }
+
+    /**
+     * Dispatch queued requests until the thread is interrupted. Thread sleeps while there is
+     * nothing queued. It never waits for a download thread, so assigns and cache hits are
+     * dispatched while all download threads are busy.
+     */
+    private void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                dispatch(scheduler.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e(e, "Problem dispatching request");
+            }
+            // a slot may be free because the tuner grew the pool or a woken download was dropped
+            wakeSlotWaiter();
         }
-        i("Image [%s] download complete", url);
     }
 
-    private void nextTask() {
-        assignPool.execute(new Runnable() {
+    private void dispatch(RequestScheduler.Task task) {
+        final ImageChooser info = task.info;
+        poolTuner.maybeTune();
+        if (scheduler.hold(task)) {
+            d("[%s]Paused, held", info.url);
+            return;
+        }
+        if (info.cancelled && task.type != TASK_REVALIDATE && task.type != TASK_RETRY) {
+            d("[%s]Group cancelled, dropped", info.url);
+            return;
+        }
+        if (task.type == TASK_LOAD || task.type == TASK_ASSIGN || task.type == TASK_FETCH) {
+            PendingDownload download = downloads.get(info.url);
+            if (download != null) {
+                if (task.type == TASK_FETCH) {
+                    d("Already loading[%s]", info.url);
+                    download.setRequired();
+                } else {
+                    // views are assigned when the download is ready
+                    task.type = TASK_ASSIGN;
+                    scheduler.park(task);
+                    if (!downloads.containsKey(info.url)) {
+                        // download finished while parking
+                        scheduler.unpark(info.url);
+                    }
+                }
+                return;
+            }
+        }
 
-            @Override
-            public void run() {
-                ImageChooser info = null;
-                synchronized (priorityStack) {
-                    if (!priorityStack.isEmpty()) {
-                        info = priorityStack.pop();
-                        d("poping priority[%s]", info.url);
+        switch (task.type) {
+            case TASK_LOAD:
+                d("Load task[%s]", info.url);
+                executeDownload(task, new DownloadRunnable(info));
+                break;
+            case TASK_FETCH:
+                executeDownload(task, new Runnable() {
+                    @Override
+                    public void run() {
+                        loadImage(info, null);
                     }
+                });
+                break;
+            case TASK_REVALIDATE:
+                executeDownload(task, new Runnable() {
+                    @Override
+                    public void run() {
+                        revalidateStale(info);
+                    }
+                });
+                break;
+            case TASK_RETRY:
+                final PendingDownload retried = downloads.get(info.url);
+                if (retried == null) {
+                    break;
+                }
+                if (retried.isCancelled()) {
+                    d("[%s]Cancelled before retry", info.url);
+                    retried.finish(false, retried.getFailedStatusCode(), null);
+                    loadingReady(retried);
+                    break;
                 }
-                if (info != null) {
-                    synchronized (loading) {
-                        if (loading.contains(info.url)) {
-                            synchronized (taskStack) {
-                                taskStack.push(info);
-                            }
-                            return;
+                executeDownload(task, new Runnable() {
+                    @Override
+                    public void run() {
+                        performDownload(info, retried);
+                    }
+                });
+                break;
+            case TASK_REQUEST:
+                final ImageRequest request = task.request;
+                if (request == null || request.isDone()) {
+                    d("[%s]Request done before it started", info.url);
+                    break;
+                }
+                if (request.decode && hasImage(info)) {
+                    // disk hit does not need a download thread or a host permit
+                    d("[%s]On disk, decoded without download", info.url);
+                    final File file = getImageFile(info);
+                    ioPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            decodeRequest(request, file);
                         }
+                    });
+                    break;
+                }
+                executeDownload(task, new Runnable() {
+                    @Override
+                    public void run() {
+                        loadRequest(request);
                     }
-                    downloadPool.execute(new DownloadRunnable(info));
-                    nextTask();
+                });
+                break;
+            default:
+                d("Assign task[%s]", info.url);
+                assignWaitingViews(info);
+                break;
+        }
+    }
+
+    /**
+     * Run download if a download thread is free, otherwise park the task in the scheduler until
+     * one is. Waiting there instead of in the executor keeps downloads in priority order, and
+     * the dispatcher keeps serving other requests meanwhile. Download of a host at its limit
+     * waits in the {@link HostLimiter} without taking a thread, and is queued again when a
+     * download of the host finishes.
+     */
+    private void executeDownload(RequestScheduler.Task task, Runnable runnable) {
+        if (task.host == null) {
+            task.host = HostLimiter.getHost(task.info.url);
+        }
+        synchronized (slotLock) {
+            if (!downloadSlots.tryAcquire()) {
+                d("[%s]Download threads busy, waiting", task.info.url);
+                scheduler.parkForSlot(task);
+                return;
+            }
+        }
+        if (task.slotWaitStart >= 0) {
+            downloadPool.addQueueWait(SystemClock.elapsedRealtime() - task.slotWaitStart);
+            task.slotWaitStart = -1;
+        }
+        if (!hostLimiter.tryStart(task.host, task)) {
+            d("[%s]Host busy, download waiting", task.info.url);
+            releaseDownloadSlot();
+            return;
+        }
+        startDownload(task.host, runnable);
+    }
+
+    /**
+     * Free a download slot and queue again the best download waiting for one.
+     */
+    private void releaseDownloadSlot() {
+        synchronized (slotLock) {
+            downloadSlots.release();
+            scheduler.unparkForSlot(hostLimiter);
+        }
+    }
+
+    /**
+     * Queue again the best download waiting for a slot, if a slot is free.
+     */
+    private void wakeSlotWaiter() {
+        synchronized (slotLock) {
+            if (downloadSlots.availablePermits() > 0) {
+                scheduler.unparkForSlot(hostLimiter);
+            }
+        }
+    }
+
+    /**
+     * Run download in a download thread. Caller holds a download slot and a permit of the host
+     * for it, both are released when the download is finished or could not be started.
+     */
+    private void startDownload(final String host, final Runnable runnable) {
+        try {
+            downloadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        finishDownload(host);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            finishDownload(host);
+            throw e;
+        }
+    }
+
+    /**
+     * Release the host permit and the slot of a download, and queue again the best downloads
+     * waiting for them.
+     */
+    private void finishDownload(String host) {
+        RequestScheduler.Task next = hostLimiter.finish(host);
+        if (next != null) {
+            scheduler.offer(next);
+        }
+        releaseDownloadSlot();
+    }
+
+    private void loadRequest(final ImageRequest request) {
+        if (request.isDone()) {
+            return;
+        }
+        loadImage(request.getImageChooser(), new ImageRequest.DownloadListener(request) {
+
+            @Override
+            public void onSuccess(final File file) {
+                if (!request.decode) {
+                    request.complete(null);
+                    return;
+                }
+                ioPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        decodeRequest(request, file);
+                    }
+                });
+            }
+
+            @Override
+            public void onFail(int statusCode) {
+                request.fail(statusCode);
+            }
+
+            @Override
+            public void onProgress(float progress) {
+                request.setProgress(progress);
+            }
+
+        }, true);
+    }
+
+    /**
+     * Disk read stage of an ImageRequest, decoding continues in the decode stage.
+     */
+    private void decodeRequest(final ImageRequest request, final File file) {
+        if (request.isDone()) {
+            return;
+        }
+        final ImageChooser info = request.getImageChooser();
+        final String cacheKey = info.getMemoryCacheKey();
+        Bitmap image = memoryCache.getAndAcquire(cacheKey);
+        if (image != null) {
+            if (!request.complete(image)) {
+                bitmapPool.release(image);
+            }
+            return;
+        }
+        final EncodedImage encoded = readEncodedImage(file, info);
+        if (encoded == null) {
+            checkMissingFile(info, file);
+            request.fail(-1);
+            return;
+        }
+        decodePool.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isDone()) {
+                    releaseEncoded(encoded);
                     return;
                 }
-
-                synchronized (taskStack) {
-                    if (!taskStack.isEmpty()) {
-                        info = taskStack.pop();
-                        d("poping task[%s]", info.url);
-                    } else {
-                        d("TaskStack empty");
-                        return;
-                    }
-                }
-                synchronized (loading) {
-                    if (loading.contains(info.url)) {
-                        synchronized (taskStack) {
-                            taskStack.add(info);
-                        }
-                        d("loading not finished");
-                        return;
-                    }
+                Bitmap image = decodeEncodedImage(weakContext.get(), encoded, info);
+                if (image == null) {
+                    checkMissingFile(info, file);
+                    request.fail(-1);
+                    return;
                 }
-
-                List<Pair<ImageChooser, WeakReference<ImageView>>> viewList = Collections.emptyList();
-                synchronized (mappedViews) {
-                    if (mappedViews.containsKey(info.url)) {
-                        viewList = mappedViews.remove(info.url);
-                    }
+                bitmapPool.acquire(image); // reference of the request
+                memoryCache.putBitmap(cacheKey, image);
+                if (!request.complete(image)) {
+                    bitmapPool.release(image);
                 }
-                for (Pair<ImageChooser, WeakReference<ImageView>> pair : viewList) {
-                    WeakReference<ImageView> weakImage = pair.second;
-                    final ImageView imageView;
-                    if (weakImage != null) {
-                        imageView = weakImage.get();
-                    } else {
-                        imageView = null;
-                        d("ImageView reference dropped");
-                    }
+            }
+        });
+    }
 
-                    if (imageView == null) {
-                        d("ImageView reference expired");
-                    } else {
-                        assignPool.execute(new AssignRunnable(pair.first, imageView));
-                    }
-                }
+    private void assignWaitingViews(ImageChooser info) {
+        List<Pair<ImageChooser, WeakReference<ImageView>>> viewList = Collections.emptyList();
+        synchronized (mappedViews) {
+            if (mappedViews.containsKey(info.url)) {
+                viewList = mappedViews.remove(info.url);
+            }
+        }
+        for (Pair<ImageChooser, WeakReference<ImageView>> pair : viewList) {
+            WeakReference<ImageView> weakImage = pair.second;
+            final ImageView imageView;
+            if (weakImage != null) {
+                imageView = weakImage.get();
+            } else {
+                imageView = null;
+                d("ImageView reference dropped");
+            }
 
-                nextTask();
+            if (imageView == null) {
+                d("ImageView reference expired");
+            } else {
+                ioPool.execute(new AssignRunnable(pair.first, imageView));
             }
-        });
+        }
     }
 
     private class DownloadRunnable implements Runnable {
@@ -1001,6 +2404,10 @@ public class ChoicelyImageService extends ChoicelyLogService {
 
         @Override
         public void run() {
+            if (!hasWaitingViews(info.url)) {
+                d("[%s]No view waiting, download skipped", info.url);
+                return;
+            }
             imageLoadTask(info);
         }
 
@@ -1019,7 +2426,6 @@ public class ChoicelyImageService extends ChoicelyLogService {
         @Override
         public void run() {
             assignImage(iv, info);
-            nextTask();
         }
 
     }
@@ -1043,13 +2449,11 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 for (Pair<ImageChooser, WeakReference<ImageView>> pair : viewList) {
                     WeakReference<ImageView> weakImage = pair.second;
                     if (weakImage != null) {
-                        assignImage(weakImage.get(), pair.first);
+                        ioPool.execute(new AssignRunnable(pair.first, weakImage.get()));
                     } else {
                         d("[%s] no weak image", info.url);
                     }
                 }
-
-                nextTask();
             }
 
             @Override
@@ -1070,56 +2474,463 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 for (Pair<ImageChooser, WeakReference<ImageView>> pair : viewList) {
                     WeakReference<ImageView> weakImage = pair.second;
                     if (weakImage != null) {
-                        assignImage(weakImage.get(), info);
+                        ioPool.execute(new AssignRunnable(info, weakImage.get()));
                     } else {
                         d("[%s] no weak image", info.url);
                     }
                 }
-
-                nextTask();
             }
-        });
+        }, true);
     }
 
+    /**
+     * Disk read stage of assigning an image to a view. Reads the file and hands it to the
+     * decode stage, see {@link #assignDecoded(ImageView, ImageChooser, File, String, Bitmap)}.
+     */
     private void assignImage(final ImageView view, final ImageChooser info) {
-        File file = getImageFile(info);
-        Bitmap image;
         if (view == null) {
             notifyImageReady(info, null);
             return;
-        } else if (file == null || !file.exists() || !file.canRead()) {
+        }
+        if (!isCurrentRequest(view, info)) {
+            d("[%s]View rebound, decode skipped", info.url);
+            return;
+        }
+        final String cacheKey = info.getMemoryCacheKey();
+        Bitmap image = memoryCache.getAndAcquire(cacheKey);
+        if (image != null) {
+            d("MemoryCache hit[%s]", info.url);
+            revalidateIfStale(info);
+            postAssignedImage(view, info, image);
+            return;
+        }
+        final File file = getImageFile(info);
+        if (file == null || !hasImage(info)) {
             d("Image File [%s] null", info.url);
             setAssignFailResource(view, info);
             return;
-        } else {
-            Options opt = getBitmapOptions(file);
-            if (info.sampleSize != null && info.sampleSize > 0) {
-                d("[%s]ScalingTo[%d] origin[%d, %d]", info.url, info.sampleSize, opt.outWidth, opt.outHeight);
-                image = createScaledBitmapFromOriginal(file, info.sampleSize, info.bitmapConfig);
-            } else if (maxTextureSize > 0 && Math.max(opt.outWidth, opt.outHeight) >= maxTextureSize) {
-                w("Maximum texture size[%d] exceeded by image[%d, %d]", maxTextureSize, opt.outWidth, opt.outHeight);
-                image = createScaledBitmapFromOriginal(file, maxTextureSize, info.bitmapConfig);
-            } else {
-                image = getBitmap(file, info);
+        }
+
+        synchronized (decoding) {
+            List<Pair<ImageChooser, WeakReference<ImageView>>> waiting = decoding.get(cacheKey);
+            if (waiting != null) {
+                // same result is being decoded for another view
+                d("[%s]Waiting for decode in progress", info.url);
+                waiting.add(Pair.create(info, new WeakReference<>(view)));
+                return;
             }
+            decoding.put(cacheKey, new ArrayList<Pair<ImageChooser, WeakReference<ImageView>>>());
         }
-        if (info.imageModifier != null && image != null) {
-            image = info.imageModifier.modify(image);
+
+        final EncodedImage encoded;
+        try {
+            encoded = readEncodedImage(file, info);
+        } catch (RuntimeException e) {
+            assignDecoded(view, info, file, cacheKey, null);
+            throw e;
+        }
+        if (encoded == null) {
+            assignDecoded(view, info, file, cacheKey, null);
+            return;
+        }
+        final WeakReference<ImageView> weakView = new WeakReference<>(view);
+        decodePool.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (decoding) {
+                    List<Pair<ImageChooser, WeakReference<ImageView>>> waiting = decoding.get(cacheKey);
+                    if (info.cancelled && (waiting == null || waiting.isEmpty())) {
+                        d("[%s]Group cancelled, decode skipped", info.url);
+                        decoding.remove(cacheKey);
+                        releaseEncoded(encoded);
+                        return;
+                    }
+                }
+                Bitmap decoded = null;
+                try {
+                    decoded = decodeEncodedImage(weakContext.get(), encoded, info);
+                } finally {
+                    assignDecoded(weakView.get(), info, file, cacheKey, decoded);
+                }
+            }
+        });
+    }
+
+    /**
+     * Assign decoded image to the view and to the views that waited for the same decode.
+     *
+     * @param image Decoded image or null if decoding failed
+     */
+    private void assignDecoded(@Nullable ImageView view, ImageChooser info, File file, String cacheKey, @Nullable Bitmap image) {
+        List<Pair<ImageChooser, WeakReference<ImageView>>> waiting;
+        synchronized (decoding) {
+            waiting = decoding.remove(cacheKey);
+        }
+
+        List<Pair<ImageChooser, ImageView>> targets = new ArrayList<>();
+        if (view != null && isCurrentRequest(view, info)) {
+            targets.add(Pair.create(info, view));
+        }
+        if (waiting != null) {
+            for (Pair<ImageChooser, WeakReference<ImageView>> pair : waiting) {
+                ImageView waitingView = pair.second.get();
+                if (waitingView != null && isCurrentRequest(waitingView, pair.first)) {
+                    targets.add(Pair.create(pair.first, waitingView));
+                }
+            }
         }
 
         if (image == null) {
             d("Image [%s] was null [%s]", info.url, file.getAbsolutePath());
-            setAssignFailResource(view, info);
-            notifyImageReady(info, null);
+            checkMissingFile(info, file);
+            for (Pair<ImageChooser, ImageView> target : targets) {
+                setAssignFailResource(target.second, target.first);
+                notifyImageReady(target.first, null);
+            }
             return;
         }
-        if (info.blur > 0) {
-            image = ChoicelyImageBlur.blur(view.getContext(), image, info.blur);
+
+        d("bytes[%s]size[%s,%s]density[%s]image[%s]targets[%d]", (image.getRowBytes() * image.getHeight()), image.getWidth(), image.getHeight(), image.getDensity(), info.url, targets.size());
+
+        for (int i = 0; i < targets.size(); i++) {
+            bitmapPool.acquire(image); // held until assigned to the view
+        }
+        memoryCache.putBitmap(cacheKey, image);
+        for (Pair<ImageChooser, ImageView> target : targets) {
+            postAssignedImage(target.second, target.first, image);
+        }
+    }
+
+    /**
+     * Image file read by the disk read stage, ready to be decoded.
+     */
+    private static class EncodedImage {
+
+        final File file;
+        @Nullable
+        final byte[] data; // pooled buffer with content of the file, null if the file is too large to buffer
+        final int dataLength;
+        @Nullable
+        final InputStream stream; // open stream of a large file positioned at the start, null if data is read
+        final Options bounds;
+        final int rotation;
+        final int maxDimension; // downscale to this size, zero for full size
+        final boolean variant; // file is a stored variant of the original
+        @Nullable
+        final File variantFile; // store decoded image as variant to this file
+
+        EncodedImage(File file, @Nullable byte[] data, int dataLength, @Nullable InputStream stream, Options bounds, int rotation, int maxDimension, boolean variant, @Nullable File variantFile) {
+            this.file = file;
+            this.data = data;
+            this.dataLength = dataLength;
+            this.stream = stream;
+            this.bounds = bounds;
+            this.rotation = rotation;
+            this.maxDimension = maxDimension;
+            this.variant = variant;
+            this.variantFile = variantFile;
+        }
+
+    }
+
+    /**
+     * Disk read stage: choose the file to decode, read it and its size and rotation.
+     *
+     * @return Image ready for the decode stage or null if it can not be read
+     */
+    @Nullable
+    private EncodedImage readEncodedImage(File file, ImageChooser info) {
+        recordDiskCacheAccess(info);
+        revalidateIfStale(info);
+        EncodedImage encoded;
+        if (info.hasTargetSize() || (info.sampleSize != null && info.sampleSize > 0)) {
+            File variantFile = getVariantFile(file, info);
+            if (variantFile != null && hasVariant(info, variantFile)) {
+                encoded = readEncodedImage(variantFile, 0, true, null);
+                if (encoded != null) {
+                    d("[%s]Variant[%s] used", info.url, variantFile.getName());
+                    recordVariantAccess(info, variantFile);
+                    return encoded;
+                }
+                w("Variant[%s] could not be read", variantFile.getAbsolutePath());
+                removeVariant(info, variantFile);
+            }
+            if (!info.hasTargetSize()) {
+                d("[%s]ScalingTo[%d]", info.url, info.sampleSize);
+                return readEncodedImage(file, info.sampleSize, false, variantFile);
+            }
+            d("[%s]FittingTo[%d, %d]%s", info.url, info.targetWidth, info.targetHeight, info.targetScaleType);
+            encoded = readEncodedImage(file, 0, false, variantFile);
+        } else {
+            encoded = readEncodedImage(file, 0, false, null);
+        }
+        if (encoded != null && maxTextureSize > 0 && Math.max(encoded.bounds.outWidth, encoded.bounds.outHeight) >= maxTextureSize) {
+            w("Maximum texture size[%d] exceeded by image[%d, %d]", maxTextureSize, encoded.bounds.outWidth, encoded.bounds.outHeight);
+            return new EncodedImage(encoded.file, encoded.data, encoded.dataLength, encoded.stream, encoded.bounds, encoded.rotation, maxTextureSize, false, encoded.variantFile);
+        }
+        return encoded;
+    }
+
+    /**
+     * Read image file with a single open. Files small enough are read to a pooled buffer, larger
+     * ones are kept open in a pooled buffered stream. Size and rotation of JPEG and PNG images
+     * are parsed from the header of the same bytes that are decoded, other formats fall back to
+     * a bounds decode and {@link ExifInterface}.
+     *
+     * @return Image ready for decoding or null if it can not be read. Its buffers must be
+     * released with {@link #releaseEncoded(EncodedImage)} or by decoding it.
+     */
+    @Nullable
+    private EncodedImage readEncodedImage(File file, int maxDimension, boolean variant, @Nullable File variantFile) {
+        long length = file.length();
+        if (length <= 0) {
+            w("Can't read location[%s]", file.getAbsolutePath());
+            return null;
+        }
+        byte[] data = null;
+        int dataLength = 0;
+        InputStream stream = null;
+        ImageHeaderParser header;
+        if (length <= MAX_BUFFERED_FILE_BYTES) {
+            dataLength = (int) length;
+            data = readFile(file, dataLength);
+            if (data == null) {
+                return null;
+            }
+            header = ImageHeaderParser.parse(new ByteArrayInputStream(data, 0, dataLength));
+        } else {
+            try {
+                stream = new PooledBufferedInputStream(new FileInputStream(file), byteArrayPool);
+                stream.mark(ImageHeaderParser.MAX_HEADER_BYTES);
+                header = ImageHeaderParser.parse(stream);
+                if (header != null) {
+                    stream.reset();
+                } else {
+                    // decoded from the file by the fallback
+                    ChoicelyStaticUtils.close(stream);
+                    stream = null;
+                }
+            } catch (IOException e) {
+                w(e, "Could not read[%s]", file.getAbsolutePath());
+                if (stream != null) {
+                    ChoicelyStaticUtils.close(stream);
+                }
+                return null;
+            }
+        }
+
+        Options bounds = new Options();
+        int rotation;
+        if (header != null) {
+            bounds.outWidth = header.width;
+            bounds.outHeight = header.height;
+            bounds.outMimeType = header.mimeType;
+            rotation = header.rotation;
+        } else if (data != null) {
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, dataLength, bounds);
+            rotation = getExifRotation(data, dataLength);
+        } else {
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
+            rotation = getExifRotation(file);
+        }
+        EncodedImage encoded = new EncodedImage(file, data, dataLength, stream, bounds, rotation, maxDimension, variant, variantFile);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            w("Not an image[%s]", file.getAbsolutePath());
+            releaseEncoded(encoded);
+            return null;
+        }
+        return encoded;
+    }
+
+    /**
+     * Read the whole file to a buffer from the byte array pool.
+     */
+    @Nullable
+    private byte[] readFile(File file, int length) {
+        FileInputStream input = null;
+        byte[] data = byteArrayPool.get(length);
+        try {
+            input = new FileInputStream(file);
+            int offset = 0;
+            int count;
+            while (offset < length && (count = input.read(data, offset, length - offset)) != -1) {
+                offset += count;
+            }
+            if (offset < length) {
+                w("File[%s] ended at[%d/%d]", file.getAbsolutePath(), offset, length);
+                byteArrayPool.put(data);
+                return null;
+            }
+            return data;
+        } catch (IOException e) {
+            w(e, "Could not read[%s]", file.getAbsolutePath());
+            byteArrayPool.put(data);
+            return null;
+        } finally {
+            if (input != null) {
+                ChoicelyStaticUtils.close(input);
+            }
+        }
+    }
+
+    /**
+     * Decode stage: decode, scale, rotate, modify and blur image read by the disk read stage.
+     *
+     * @return Bitmap or null if image could not be decoded
+     */
+    @Nullable
+    private Bitmap decodeEncodedImage(Context context, EncodedImage encoded, ImageChooser info) {
+        Options opt = new Options();
+        opt.inPreferredConfig = info.bitmapConfig;
+        boolean scaled = false;
+        if (!encoded.variant && info.hasTargetSize()) {
+            scaled = setScaleOptions(opt, encoded.bounds, getTargetScale(encoded.bounds, encoded.rotation, info));
+        }
+        if (!scaled && encoded.maxDimension > 0) {
+            opt.inSampleSize = getSampleSize(encoded.bounds, encoded.maxDimension);
+        }
+        Bitmap image = null;
+        try {
+            image = decodeEncoded(encoded, opt);
+            int cropWidth = 0;
+            int cropHeight = 0;
+            if (scaled && info.targetScaleType == ImageView.ScaleType.CENTER_CROP) {
+                // parts the view crops away are not kept
+                cropWidth = info.targetWidth;
+                cropHeight = info.targetHeight;
+            }
+            if (image != null) {
+                image = transform(image, encoded.rotation, cropWidth, cropHeight);
+            }
+        } catch (OutOfMemoryError e) {
+            callGC();
+            w("Memory running low.");
+        }
+        if (image == null) {
+            w("Bitmap [%s] could not be made", encoded.file.getAbsolutePath());
+            if (encoded.variant) {
+                removeVariant(info, encoded.file);
+            }
+            return null;
+        }
+        if (encoded.variantFile != null && (long) image.getWidth() * image.getHeight()
+                < (long) encoded.bounds.outWidth * encoded.bounds.outHeight) {
+            // only images smaller than the original are worth a variant
+            if (info.imageModifier != null) {
+                // modifier may change the pixels, variant is written from a copy taken before it runs
+                try {
+                    saveVariant(info, encoded.variantFile, copyBitmap(image));
+                } catch (OutOfMemoryError e) {
+                    w("No memory to store variant[%s]", encoded.variantFile.getName());
+                }
+            } else {
+                saveVariant(info, encoded.variantFile, image);
+            }
+        }
+        if (info.imageModifier != null) {
+            image = info.imageModifier.modify(image);
+        }
+        if (info.blur > 0 && image != null) {
+            Bitmap blurred = ChoicelyImageBlur.blur(context, image, info.blur);
+            if (blurred != null && blurred != image) {
+                bitmapPool.put(image);
+            }
+            image = blurred;
+        }
+        return image;
+    }
+
+    /**
+     * Get file for downscaled variant of the image or null if variant should not be stored.
+     */
+    @Nullable
+    private File getVariantFile(File file, ImageChooser info) {
+        if (info.url.startsWith("/")) {
+            // local images are not ours to write next to
+            return null;
+        }
+        String variantName = info.sampleSize + "_" + info.bitmapConfig.name();
+        if (info.hasTargetSize()) {
+            variantName = "t" + info.targetWidth + "x" + info.targetHeight + "_" + info.targetScaleType
+                    + "_" + info.bitmapConfig.name();
         }
+        return new File(file.getParentFile(), DiskLruCache.getVariantKey(file.getName(), variantName));
+    }
+
+    private boolean hasVariant(ImageChooser info, File variantFile) {
+        DiskLruCache cache = diskCache;
+        if (cache != null && getDiskCacheKey(info) != null) {
+            return cache.contains(variantFile.getName());
+        }
+        return variantFile.exists();
+    }
+
+    private void recordVariantAccess(ImageChooser info, File variantFile) {
+        DiskLruCache cache = diskCache;
+        if (cache != null && getDiskCacheKey(info) != null) {
+            cache.recordAccess(variantFile.getName());
+        }
+    }
+
+    private void removeVariant(ImageChooser info, File variantFile) {
+        DiskLruCache cache = diskCache;
+        if (cache != null && getDiskCacheKey(info) != null) {
+            cache.remove(variantFile.getName());
+        } else if (variantFile.exists() && !variantFile.delete()) {
+            w("Could not delete variant[%s]", variantFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Write downscaled variant to disk in background. Bitmap must not be changed after this,
+     * a bitmap nobody else uses is put back to the pool when it is written, see
+     * {@link #writeVariant(ImageChooser, File, Bitmap)}.
+     */
+    private void saveVariant(final ImageChooser info, final File variantFile, final Bitmap bm) {
+        bitmapPool.acquire(bm); // pixels must not be reused before they are written
+        diskWritePool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeVariant(info, variantFile, bm);
+                } finally {
+                    bitmapPool.release(bm);
+                }
+            }
+        });
+    }
 
-        d("bytes[%s]size[%s,%s]density[%s]image[%s]", (image.getRowBytes() * image.getHeight()), image.getWidth(), image.getHeight(), image.getDensity(), info.url);
+    /**
+     * Write downscaled variant to disk in the calling thread.
+     */
+    private void writeVariant(ImageChooser info, File variantFile, Bitmap bm) {
+        File tempFile = new File(variantFile.getPath() + ".tmp");
+        CompressFormat format = bm.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG;
+        saveImageToFile(bm, tempFile, format, VARIANT_COMPRESSION);
+        boolean stored = tempFile.renameTo(variantFile);
+        if (!stored && restoreFolder(variantFile)) {
+            saveImageToFile(bm, tempFile, format, VARIANT_COMPRESSION);
+            stored = tempFile.renameTo(variantFile);
+        }
+        if (!stored) {
+            w("Could not store variant[%s]", variantFile.getAbsolutePath());
+            if (tempFile.exists() && !tempFile.delete()) {
+                w("Could not delete[%s]", tempFile.getAbsolutePath());
+            }
+            return;
+        }
+        DiskLruCache cache = diskCache;
+        if (cache != null && getDiskCacheKey(info) != null) {
+            cache.commit(variantFile.getName(), variantFile);
+        }
+    }
 
-        final Bitmap assignedImage = image;
+    /**
+     * Note: given bitmap must be acquired from the bitmap pool, the reference is passed to the view.
+     */
+    private void postAssignedImage(final ImageView view, final ImageChooser info, final Bitmap assignedImage) {
         uiHandler.post(new Runnable() {
 
             @Override
@@ -1141,8 +2952,10 @@ public class ChoicelyImageService extends ChoicelyLogService {
                             crossFade.setCrossFadeEnabled(true);
                             view.setImageDrawable(crossFade);
                             crossFade.startTransition(info.crossFadeDuration);
+                            setDisplayedBitmap(view, assignedImage, info.crossFadeDuration);
                         } else {
                             view.setImageBitmap(assignedImage);
+                            setDisplayedBitmap(view, assignedImage, 0);
                         }
                     } else if (info.exitAnimation != null) {
                         info.exitAnimation.setAnimationListener(new OnAnimationEnd(assignedImage, view, info));
@@ -1150,6 +2963,7 @@ public class ChoicelyImageService extends ChoicelyLogService {
                         view.startAnimation(info.exitAnimation);
                     } else {
                         view.setImageBitmap(assignedImage);
+                        setDisplayedBitmap(view, assignedImage, 0);
                         if (info.enterAnimation != null) {
                             d("[%s]Enter animation started", info.url);
                             view.startAnimation(info.enterAnimation);
@@ -1159,12 +2973,40 @@ public class ChoicelyImageService extends ChoicelyLogService {
                     i("Image[%s] set successfully", info.url);
                 } else {
                     d("Different image queued [%s / %s] ", info.url, tag);
+                    bitmapPool.release(assignedImage);
                 }
 
             }
         });
     }
 
+    /**
+     * Remember which bitmap the view is showing and release the one it showed before.
+     *
+     * @param releaseDelay Delay in milliseconds before previous bitmap is released, previous
+     *                     bitmap is still drawn during cross fade.
+     */
+    private void setDisplayedBitmap(ImageView view, Bitmap bm, int releaseDelay) {
+        final Bitmap previous = displayedBitmaps.put(view, bm);
+        if (previous == null) {
+            return;
+        }
+        if (releaseDelay > 0) {
+            uiHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    bitmapPool.release(previous);
+                }
+            }, releaseDelay);
+        } else {
+            bitmapPool.release(previous);
+        }
+    }
+
+    private void clearDisplayedBitmap(ImageView view) {
+        bitmapPool.release(displayedBitmaps.remove(view));
+    }
+
     private void setAssignFailResource(final ImageView view, final ImageChooser info) {
         if (info.assignFailResource == null) {
             return;
@@ -1173,6 +3015,7 @@ public class ChoicelyImageService extends ChoicelyLogService {
             @Override
             public void run() {
                 view.setImageResource(info.assignFailResource);
+                clearDisplayedBitmap(view);
             }
         });
     }
@@ -1185,6 +3028,10 @@ public class ChoicelyImageService extends ChoicelyLogService {
         if (listener == null) {
             return;
         }
+        if (image != null && !(listener instanceof ThumbnailListener)) {
+            // listener may keep the bitmap, its pixels must not be decoded over
+            bitmapPool.detach(image);
+        }
         d("NotifyImageReady[%s]", url);
         uiHandler.post(new Runnable() {
             @Override
@@ -1194,6 +3041,35 @@ public class ChoicelyImageService extends ChoicelyLogService {
         });
     }
 
+    /**
+     * Starts loading the full image when its thumbnail is ready. Does not keep the thumbnail
+     * bitmap, so the bitmap stays poolable.
+     */
+    private class ThumbnailListener implements ImageServiceListener {
+
+        private final ImageChooser info;
+        private final WeakReference<ImageView> weakImage;
+
+        private ThumbnailListener(ImageChooser info, WeakReference<ImageView> weakImage) {
+            this.info = info;
+            this.weakImage = weakImage;
+        }
+
+        @Override
+        public void imageReady(String imageUrl, Bitmap image, int defaultResId) {
+            d("Thumbnail[%s] ready", imageUrl);
+            info.setEnterAnimation(null); // clear enter animation if thumbnail assign was success
+            setImage(info, weakImage);
+        }
+
+        @Override
+        public void imageError(String imageUrl, int resultCode) {
+            w("Thumbnail[%s] error", imageUrl);
+            setImage(info, weakImage);
+        }
+
+    }
+
     private class OnAnimationEnd implements AnimationListener {
 
         private ImageView view;
@@ -1212,11 +3088,15 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 String tag = (String) view.getTag(R.id.cis_tag_id);
                 if (tag != null && !info.url.equals(tag)) {
                     d("Different image already queued");
+                    bitmapPool.release(image);
                 } else {
                     d("Enter animation started");
                     view.setImageBitmap(image);
+                    setDisplayedBitmap(view, image, 0);
                     view.startAnimation(info.enterAnimation);
                 }
+            } else {
+                bitmapPool.release(image);
             }
         }
 
@@ -1239,21 +3119,39 @@ public class ChoicelyImageService extends ChoicelyLogService {
      * @return true if local file exists and false is no file exist.
      */
     public boolean hasImage(String url) {
-        File f = getImageFile(url);
-        return f != null && f.exists();
+        return hasImage(new ImageChooser(url));
     }
 
     /**
-     * Checks does the local file of the image.
+     * Checks does the local file of the image. Images in the default directory are checked
+     * from the in-memory index of the disk cache without touching the file system.
      *
      * @param info Image information.
      * @return true if local file exists and false is no file exist.
      */
     public boolean hasImage(ImageChooser info) {
+        DiskLruCache cache = diskCache;
+        String key = getDiskCacheKey(info);
+        if (cache != null && key != null) {
+            return cache.contains(key);
+        }
         File f = getImageFile(info);
         return f != null && f.exists();
     }
 
+    /**
+     * Drop index entry of an image file that was removed outside of ChoicelyImageService,
+     * for example when the system clears application cache.
+     */
+    private void checkMissingFile(ImageChooser info, File file) {
+        DiskLruCache cache = diskCache;
+        String key = getDiskCacheKey(info);
+        if (cache != null && key != null && !file.exists()) {
+            w("Image file[%s] missing, removing from index", file.getAbsolutePath());
+            cache.remove(key);
+        }
+    }
+
     /**
      * Delete all images downloaded with ChoicelyImageService.
      */
@@ -1269,7 +3167,13 @@ public class ChoicelyImageService extends ChoicelyLogService {
                     return;
                 }
                 for (File child : files) {
-                    deleteRecursive(child, null);
+                    if (!DiskLruCache.isJournalFile(child.getName())) {
+                        deleteRecursive(child, null);
+                    }
+                }
+                DiskLruCache cache = diskCache;
+                if (cache != null) {
+                    cache.clear();
                 }
             }
         });
@@ -1291,9 +3195,16 @@ public class ChoicelyImageService extends ChoicelyLogService {
                 if (files == null) {
                     return;
                 }
+                DiskLruCache cache = diskCache;
                 try {
                     for (File child : files) {
+                        if (DiskLruCache.isJournalFile(child.getName())) {
+                            continue;
+                        }
                         deleteRecursive(child, timeModified);
+                        if (cache != null && !child.exists()) {
+                            cache.remove(child.getName());
+                        }
                     }
                 } catch (Exception e) {
                     w(e, "Problem deleting children");
@@ -1354,7 +3265,20 @@ public class ChoicelyImageService extends ChoicelyLogService {
         } catch (IOException e) {
             d(e, "Unable to get exif data");
         }
+        return getExifRotation(exif);
+    }
+
+    private int getExifRotation(byte[] data, int length) {
+        ExifInterface exif = null;
+        try {
+            exif = new ExifInterface(new ByteArrayInputStream(data, 0, length));
+        } catch (IOException e) {
+            d(e, "Unable to get exif data");
+        }
+        return getExifRotation(exif);
+    }
 
+    private static int getExifRotation(@Nullable ExifInterface exif) {
         int exifRotation = ExifInterface.ORIENTATION_NORMAL;
         if (exif != null) {
             exifRotation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
@@ -0,0 +1,278 @@
+package com.choicely.imageservice;
+
+import android.support.annotation.Nullable;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Limits how many downloads run at the same time against one host, so a slow server can not
+ * take every download thread while other servers are idle.
+ *
+ * A download over the limit of its host waits here without holding a download thread, best
+ * class and oldest first. When a download of the host finishes, the best waiting download is
+ * queued again to the {@link RequestScheduler}, so it competes with other requests by its
+ * priority and age instead of taking the thread of the finished download.
+ *
+ * By default a host may run one download less than there are download threads, but at least
+ * {@link #MIN_DEFAULT_MAX_CONCURRENT}, so a single slow host never holds every thread while
+ * other hosts wait. Downloads waiting for a free thread are taken from the least busy host
+ * within their class, so hosts with waiting downloads take turns, see
+ * {@link #compareLoad(String, String)}. Limits of known hosts can be set with
+ * {@link #setMaxConcurrent(String, int)}.
+ *
+ * Latency and throughput of every host are measured, see {@link #getAverageLatencyMillis(String)}
+ * and {@link #getThroughput(String)}.
+ */
+public class HostLimiter extends ChoicelyLogService {
+
+    /**
+     * Smallest default limit of a host, used when there are only a few download threads.
+     */
+    public static final int MIN_DEFAULT_MAX_CONCURRENT = 2;
+
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final ResizableSemaphore downloadSlots;
+    private int defaultMaxConcurrent = -1; // negative follows the number of download threads
+
+    private static class Host {
+
+        final String name;
+        int maxConcurrent = -1; // negative uses the default
+        int running = 0;
+        final PriorityQueue<RequestScheduler.Task> waiting = new PriorityQueue<>(11, RequestScheduler.WAIT_ORDER);
+
+        long requestCount = 0;
+        long failureCount = 0;
+        long totalLatencyMillis = 0;
+        long totalTransferMillis = 0;
+        long totalBytes = 0;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+    }
+
+    HostLimiter(ResizableSemaphore downloadSlots) {
+        super("HostLimiter");
+        this.downloadSlots = downloadSlots;
+        setDebug(false);
+    }
+
+    /**
+     * Get host of the url, empty string if url has no host.
+     */
+    static String getHost(String url) {
+        HttpUrl httpUrl = url != null ? HttpUrl.parse(url) : null;
+        return httpUrl != null ? httpUrl.host() : "";
+    }
+
+    private Host getOrCreate(String name) {
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            hosts.put(name, host);
+        }
+        return host;
+    }
+
+    private int getMaxConcurrent(Host host) {
+        return host.maxConcurrent > 0 ? host.maxConcurrent : getDefaultMaxConcurrent();
+    }
+
+    private int getDefaultMaxConcurrent() {
+        if (defaultMaxConcurrent > 0) {
+            return defaultMaxConcurrent;
+        }
+        return Math.max(MIN_DEFAULT_MAX_CONCURRENT, downloadSlots.getSize() - 1);
+    }
+
+    /**
+     * Set maximum number of simultaneous downloads from the host.
+     *
+     * @param host Host name, for example "images.example.com"
+     * @param max  Maximum downloads, zero or negative to use the default
+     */
+    public synchronized void setMaxConcurrent(String host, int max) {
+        getOrCreate(host).maxConcurrent = max;
+    }
+
+    /**
+     * Set maximum number of simultaneous downloads from hosts without their own limit.
+     *
+     * @param max Maximum downloads, zero or negative to follow the number of download threads
+     */
+    public synchronized void setDefaultMaxConcurrent(int max) {
+        defaultMaxConcurrent = max;
+    }
+
+    /**
+     * Maximum number of simultaneous downloads from the host.
+     */
+    public synchronized int getMaxConcurrent(String host) {
+        Host h = hosts.get(host);
+        return h != null ? getMaxConcurrent(h) : getDefaultMaxConcurrent();
+    }
+
+    /**
+     * Compare how busy two hosts are, to let the least busy host take a free download thread.
+     * A host at its limit is busier than any host under it, otherwise the host running fewer
+     * downloads is less busy.
+     *
+     * @return Negative if first host is less busy, positive if it is busier, zero if equal
+     */
+    synchronized int compareLoad(String first, String second) {
+        Host a = hosts.get(first);
+        Host b = hosts.get(second);
+        int runningA = a != null ? a.running : 0;
+        int runningB = b != null ? b.running : 0;
+        boolean fullA = a != null && runningA >= getMaxConcurrent(a);
+        boolean fullB = b != null && runningB >= getMaxConcurrent(b);
+        if (fullA != fullB) {
+            return fullA ? 1 : -1;
+        }
+        return runningA - runningB;
+    }
+
+    /**
+     * Start download of the task if its host is under the limit, otherwise keep the task
+     * waiting until a download of the host finishes.
+     *
+     * @return true if download may start now, false if the task is waiting for its host
+     */
+    synchronized boolean tryStart(String hostName, RequestScheduler.Task task) {
+        Host host = getOrCreate(hostName);
+        if (host.running < getMaxConcurrent(host)) {
+            host.running++;
+            return true;
+        }
+        host.waiting.add(task);
+        d("wait[%s] running[%d] waiting[%d]", host.name, host.running, host.waiting.size());
+        return false;
+    }
+
+    /**
+     * Mark download of the host finished and take the best task waiting for the host.
+     *
+     * @return Task to queue again or null if none is waiting
+     */
+    @Nullable
+    synchronized RequestScheduler.Task finish(String hostName) {
+        Host host = hosts.get(hostName);
+        if (host == null) {
+            return null;
+        }
+        host.running--;
+        return host.waiting.poll();
+    }
+
+    /**
+     * Find tasks with the tag waiting for their host. Tasks stay waiting.
+     */
+    synchronized List<RequestScheduler.Task> findWaiting(Object tag) {
+        List<RequestScheduler.Task> list = new ArrayList<>();
+        for (Host host : hosts.values()) {
+            for (RequestScheduler.Task task : host.waiting) {
+                if (tag.equals(task.info.tag)) {
+                    list.add(task);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Record a finished request to the host.
+     *
+     * @param latencyMillis  Time until response headers were received
+     * @param transferMillis Time from the request to the end of the body
+     * @param bytes          Bytes received
+     * @param success        Was the response successful
+     */
+    synchronized void record(String hostName, long latencyMillis, long transferMillis, long bytes, boolean success) {
+        Host host = getOrCreate(hostName);
+        host.requestCount++;
+        if (!success) {
+            host.failureCount++;
+        }
+        host.totalLatencyMillis += latencyMillis;
+        host.totalTransferMillis += transferMillis;
+        host.totalBytes += Math.max(0, bytes);
+    }
+
+    /**
+     * Hosts that have been requested or configured.
+     */
+    public synchronized List<String> getHosts() {
+        return new ArrayList<>(hosts.keySet());
+    }
+
+    public synchronized int getRunningCount(String host) {
+        Host h = hosts.get(host);
+        return h != null ? h.running : 0;
+    }
+
+    /**
+     * Number of downloads waiting because the host is at its limit.
+     */
+    public synchronized int getWaitingCount(String host) {
+        Host h = hosts.get(host);
+        return h != null ? h.waiting.size() : 0;
+    }
+
+    public synchronized long getRequestCount(String host) {
+        Host h = hosts.get(host);
+        return h != null ? h.requestCount : 0;
+    }
+
+    public synchronized long getFailureCount(String host) {
+        Host h = hosts.get(host);
+        return h != null ? h.failureCount : 0;
+    }
+
+    /**
+     * Average time until response headers were received from the host.
+     */
+    public synchronized long getAverageLatencyMillis(String host) {
+        Host h = hosts.get(host);
+        return h != null && h.requestCount > 0 ? h.totalLatencyMillis / h.requestCount : 0;
+    }
+
+    /**
+     * Bytes per second received from the host while requests were running.
+     */
+    public synchronized long getThroughput(String host) {
+        Host h = hosts.get(host);
+        return h != null && h.totalTransferMillis > 0 ? h.totalBytes * 1000 / h.totalTransferMillis : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("HostLimiter[");
+        boolean first = true;
+        for (Host host : hosts.values()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(host.name).append("(running=").append(host.running)
+                    .append('/').append(getMaxConcurrent(host))
+                    .append(", waiting=").append(host.waiting.size())
+                    .append(", requests=").append(host.requestCount)
+                    .append(", failures=").append(host.failureCount)
+                    .append(", latency=").append(getAverageLatencyMillis(host.name))
+                    .append("ms, throughput=").append(getThroughput(host.name))
+                    .append("B/s)");
+        }
+        return sb.append(']').toString();
+    }
+
+}
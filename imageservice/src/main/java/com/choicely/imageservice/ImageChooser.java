@@ -37,8 +37,16 @@ public class ImageChooser {
     @Nullable
     Integer assignFailResource = null;
 
+    boolean fitToView = false;
+    int targetWidth = 0; // measured size of the view, zero until measured
+    int targetHeight = 0;
+    @Nullable
+    ImageView.ScaleType targetScaleType = null;
+
     @Nullable
     ImageModifier imageModifier;
+    @Nullable
+    String imageModifierKey;
 
     int defResource = R.color.cis_transparent;
     boolean isAssignedImmediately = false;
@@ -47,6 +55,13 @@ public class ImageChooser {
 
     int blur = 0; // zero is no blur
 
+    @Nullable
+    Priority priority = null; // null uses the default of the request method
+
+    @Nullable
+    Object tag = null;
+    volatile boolean cancelled = false; // set when the group of the tag is cancelled
+
     @NonNull
     Config bitmapConfig = Config.ARGB_8888;
 
@@ -113,6 +128,50 @@ public class ImageChooser {
         return this;
     }
 
+    /**
+     * Decode image straight to the size it is shown in. Size and scale type are read from the
+     * ImageView the image is set to, waiting for its layout if needed. Overrides
+     * {@link #sampleSize(Integer)} when the view has a size.
+     */
+    public ImageChooser fitToView(boolean fitToView) {
+        this.fitToView = fitToView;
+        if (thumbnail != null) {
+            thumbnail.fitToView(fitToView);
+        }
+        return this;
+    }
+
+    /**
+     * Decode image to a known size, for example when preloading images for views that are not
+     * laid out yet. Size of the view the image is set to is used instead when it is measured.
+     *
+     * @param width     Width the image is shown in
+     * @param height    Height the image is shown in
+     * @param scaleType Scale type of the view showing the image
+     */
+    public ImageChooser fitTo(int width, int height, @Nullable ImageView.ScaleType scaleType) {
+        fitToView(true);
+        setTargetSize(width, height, scaleType);
+        return this;
+    }
+
+    public boolean isFitToView() {
+        return fitToView;
+    }
+
+    void setTargetSize(int width, int height, @Nullable ImageView.ScaleType scaleType) {
+        this.targetWidth = width;
+        this.targetHeight = height;
+        this.targetScaleType = scaleType;
+        if (thumbnail != null) {
+            thumbnail.setTargetSize(width, height, scaleType);
+        }
+    }
+
+    boolean hasTargetSize() {
+        return fitToView && targetWidth > 0 && targetHeight > 0;
+    }
+
     public ImageChooser setFolder(@Nullable File folder) {
         this.folder = folder;
         return this;
@@ -139,9 +198,21 @@ public class ImageChooser {
     }
 
     public ImageChooser setImageModifier(@Nullable ImageModifier modifier) {
+        return setImageModifier(modifier, null);
+    }
+
+    /**
+     * Set image modifier with a key identifying its result. Images modified with the same key
+     * can be shared from memory cache, without a key the modifier instance is used instead.
+     *
+     * @param modifier    ImageModifier applied to the image before it is assigned
+     * @param modifierKey Key describing what the modifier does to the image. Can be null.
+     */
+    public ImageChooser setImageModifier(@Nullable ImageModifier modifier, @Nullable String modifierKey) {
         this.imageModifier = modifier;
+        this.imageModifierKey = modifierKey;
         if (thumbnail != null) {
-            thumbnail.setImageModifier(modifier);
+            thumbnail.setImageModifier(modifier, modifierKey);
         }
         return this;
     }
@@ -187,7 +258,17 @@ public class ImageChooser {
             this.thumbnail.thumbnailParentUrl = this.url;
             this.thumbnail.setAssignImmediately(true);
             if (imageModifier != null) {
-                this.thumbnail.setImageModifier(imageModifier);
+                this.thumbnail.setImageModifier(imageModifier, imageModifierKey);
+            }
+            if (priority != null) {
+                this.thumbnail.setPriority(priority);
+            }
+            if (tag != null) {
+                this.thumbnail.setTag(tag);
+            }
+            if (fitToView) {
+                this.thumbnail.fitToView(true);
+                this.thumbnail.setTargetSize(targetWidth, targetHeight, targetScaleType);
             }
         }
 
@@ -198,6 +279,47 @@ public class ImageChooser {
         return thumbnail;
     }
 
+    /**
+     * Set scheduling class of the request. By default images assigned to views are
+     * {@link Priority#VISIBLE} and images loaded in background {@link Priority#PREFETCH}.
+     */
+    public ImageChooser setPriority(@Nullable Priority priority) {
+        this.priority = priority;
+        if (thumbnail != null) {
+            thumbnail.setPriority(priority);
+        }
+        return this;
+    }
+
+    @NonNull
+    Priority getPriority(@NonNull Priority defaultPriority) {
+        return priority != null ? priority : defaultPriority;
+    }
+
+    /**
+     * Set tag of the request, used to pause and resume groups of requests with
+     * {@link ChoicelyImageService#pause(Object)} and {@link ChoicelyImageService#resume(Object)}.
+     */
+    public ImageChooser setTag(@Nullable Object tag) {
+        this.tag = tag;
+        if (thumbnail != null) {
+            thumbnail.setTag(tag);
+        }
+        return this;
+    }
+
+    @Nullable
+    public Object getTag() {
+        return tag;
+    }
+
+    void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+        if (thumbnail != null) {
+            thumbnail.setCancelled(cancelled);
+        }
+    }
+
     public ImageChooser setCrossFade(boolean crossFade) {
         isCrossFade = crossFade;
         return this;
@@ -208,6 +330,32 @@ public class ImageChooser {
         return this;
     }
 
+    /**
+     * Key for the decoded result of this image. Combines everything that changes the
+     * resulting Bitmap.
+     */
+    String getMemoryCacheKey() {
+        StringBuilder sb = new StringBuilder(url)
+                .append("|s").append(sampleSize)
+                .append("|c").append(bitmapConfig)
+                .append("|b").append(blur);
+        if (hasTargetSize()) {
+            sb.append("|t").append(targetWidth).append('x').append(targetHeight)
+                    .append(targetScaleType);
+        }
+        if (imageModifier != null) {
+            sb.append("|m");
+            if (imageModifierKey != null) {
+                sb.append(imageModifierKey);
+            } else {
+                sb.append(imageModifier.getClass().getName())
+                        .append('@')
+                        .append(System.identityHashCode(imageModifier));
+            }
+        }
+        return sb.toString();
+    }
+
     public static ImageChooser url(String url) {
         return new ImageChooser(url);
     }
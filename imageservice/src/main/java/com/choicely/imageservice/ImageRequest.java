@@ -0,0 +1,291 @@
+package com.choicely.imageservice;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v4.util.Pair;
+
+import com.choicely.imageservice.cache.BitmapPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of an image requested with {@link ChoicelyImageService#fetch(ImageChooser)}.
+ *
+ * Result can be waited with {@link #get(long, TimeUnit)} in a background thread or listened
+ * with {@link #addListener(ImageRequestListener, Executor)}.
+ *
+ * NOTE: the bitmap is shared with the memory cache of {@link ChoicelyImageService}. The
+ * request keeps its pixels from being reused until {@link #release()} is called, so call it
+ * when the bitmap is no longer used.
+ */
+public class ImageRequest implements Future<Bitmap> {
+
+    /**
+     * Status code given to listeners of a cancelled request.
+     */
+    public static final int STATUS_CANCELLED = -2;
+
+    private static final int PENDING = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final Executor MAIN_THREAD = new Executor() {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+
+    };
+
+    /**
+     * Runs listeners in the thread that finishes the request.
+     */
+    static final Executor DIRECT = new Executor() {
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+
+    };
+
+    private final ImageChooser info;
+    private final BitmapPool bitmapPool;
+    final boolean decode; // false completes with null bitmap when the file is downloaded
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private final List<Pair<ImageRequestListener, Executor>> listeners = new ArrayList<>();
+
+    private volatile int state = PENDING;
+    private volatile float progress = 0f;
+    private Bitmap bitmap;
+    private int statusCode = 0;
+    private boolean released = false;
+    private Runnable canceller;
+
+    /**
+     * Download listener of a request. Download of the image is not cancelled while there are
+     * requests waiting for it.
+     */
+    abstract static class DownloadListener implements ImageLoadListener {
+
+        final ImageRequest request;
+
+        DownloadListener(ImageRequest request) {
+            this.request = request;
+        }
+
+    }
+
+    ImageRequest(ImageChooser info, BitmapPool bitmapPool, boolean decode) {
+        this.info = info;
+        this.bitmapPool = bitmapPool;
+        this.decode = decode;
+    }
+
+    public ImageChooser getImageChooser() {
+        return info;
+    }
+
+    /**
+     * Download progress between [0, 1].
+     */
+    public float getProgress() {
+        return progress;
+    }
+
+    /**
+     * HTTP status code of a failed request, see {@link ImageRequestListener#onFail(ImageRequest, int)}.
+     */
+    public synchronized int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Add listener called in UI thread. If request is already done, listener is called right away.
+     */
+    public ImageRequest addListener(ImageRequestListener listener) {
+        return addListener(listener, MAIN_THREAD);
+    }
+
+    /**
+     * Add listener called with given executor. If request is already done, listener is called
+     * right away.
+     */
+    public ImageRequest addListener(ImageRequestListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            return this;
+        }
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(Pair.create(listener, executor));
+                return this;
+            }
+        }
+        notifyDone(listener, executor);
+        return this;
+    }
+
+    @Override
+    public Bitmap get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public Bitmap get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit)) {
+            throw new TimeoutException("Image[" + info.url + "] not ready in " + timeout + " " + unit);
+        }
+        return getResult();
+    }
+
+    private synchronized Bitmap getResult() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException("Image[" + info.url + "] cancelled");
+        } else if (state == FAILED) {
+            throw new ExecutionException(new IOException("Image[" + info.url + "] failed with status[" + statusCode + "]"));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Cancel the request. Download of the image is cancelled if nothing else needs it.
+     *
+     * @param mayInterruptIfRunning Ignored, running download is cancelled in either case
+     * @return false if request was already done
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(CANCELLED, null, STATUS_CANCELLED)) {
+            return false;
+        }
+        Runnable cancel;
+        synchronized (this) {
+            cancel = canceller;
+            canceller = null;
+        }
+        if (cancel != null) {
+            cancel.run();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * Let the bitmap pool reuse the bitmap of this request. Bitmap must not be used after this.
+     */
+    public synchronized void release() {
+        if (state == SUCCESS && !released && bitmap != null) {
+            released = true;
+            bitmapPool.release(bitmap);
+        }
+    }
+
+    synchronized void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+    }
+
+    void setProgress(final float progress) {
+        this.progress = progress;
+        List<Pair<ImageRequestListener, Executor>> list;
+        synchronized (this) {
+            if (state != PENDING) {
+                return;
+            }
+            list = new ArrayList<>(listeners);
+        }
+        for (final Pair<ImageRequestListener, Executor> pair : list) {
+            pair.second.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pair.first.onProgress(ImageRequest.this, progress);
+                }
+            });
+        }
+    }
+
+    /**
+     * Complete request with a bitmap acquired from the bitmap pool, the reference is passed
+     * to the request.
+     *
+     * @return false if request was already done and caller still owns the reference
+     */
+    boolean complete(Bitmap bm) {
+        return finish(SUCCESS, bm, 0);
+    }
+
+    boolean fail(int statusCode) {
+        return finish(FAILED, null, statusCode);
+    }
+
+    private boolean finish(int newState, Bitmap bm, int code) {
+        List<Pair<ImageRequestListener, Executor>> list;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            bitmap = bm;
+            statusCode = code;
+            if (newState == SUCCESS) {
+                progress = 1f;
+            }
+            state = newState;
+            list = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        doneLatch.countDown();
+        for (Pair<ImageRequestListener, Executor> pair : list) {
+            notifyDone(pair.first, pair.second);
+        }
+        return true;
+    }
+
+    private void notifyDone(final ImageRequestListener listener, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bm;
+                int code;
+                synchronized (ImageRequest.this) {
+                    bm = bitmap;
+                    code = statusCode;
+                }
+                if (state == SUCCESS) {
+                    listener.onComplete(ImageRequest.this, bm);
+                } else {
+                    listener.onFail(ImageRequest.this, code);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImageRequest[%s, state=%d, progress=%s]", info.url, state, Float.toString(progress));
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.choicely.imageservice;
+
+import android.graphics.Bitmap;
+
+/**
+ * Listener of an {@link ImageRequest}. Methods are called on the executor given with the
+ * listener, or in UI thread by default.
+ */
+public interface ImageRequestListener {
+
+    void onProgress(ImageRequest request, float progress);
+
+    /**
+     * Called when image is ready. The bitmap is shared, see {@link ImageRequest}.
+     */
+    void onComplete(ImageRequest request, Bitmap bitmap);
+
+    /**
+     * Called when image could not be loaded.
+     *
+     * @param statusCode HTTP status code of the failure, -1 if there was no response and
+     *                   {@link ImageRequest#STATUS_CANCELLED} if request was cancelled
+     */
+    void onFail(ImageRequest request, int statusCode);
+
+}
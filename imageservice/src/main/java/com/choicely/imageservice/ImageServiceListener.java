@@ -12,6 +12,10 @@ public interface ImageServiceListener {
     /**
      * Called when image is ready for use.
      *
+     * NOTE: pixels of the bitmap are not reused by {@link ChoicelyImageService} after it is
+     * given here. When the bitmap is no longer used it can be given back with
+     * {@link ChoicelyImageService#releaseBitmap(Bitmap)}.
+     *
      * @param imageUrl     the image location string on the load that finished
      * @param image        the result image, or <code>null</code> if one could not be
      *                     retrieved
@@ -0,0 +1,122 @@
+package com.choicely.imageservice;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that measures how long tasks wait in the queue, how long they run and how much
+ * of the running time they use the CPU. Running time without CPU is time blocked on network or
+ * disk. Pool can be resized while running, see {@link #resize(int)}.
+ *
+ * Queue of the pool can be bounded, then {@link #execute(Runnable)} blocks while the queue is
+ * full. This makes a stage that feeds the pool wait instead of piling up work and memory.
+ */
+class MeasuredExecutor extends ThreadPoolExecutor {
+
+    private final AtomicLong taskCount = new AtomicLong();
+    private final AtomicLong queueWaitMillis = new AtomicLong();
+    private final AtomicLong runMillis = new AtomicLong();
+    private final AtomicLong cpuMillis = new AtomicLong();
+
+    MeasuredExecutor(int threads, String name) {
+        this(threads, name, 0);
+    }
+
+    /**
+     * @param queueCapacity Maximum number of queued tasks, zero for unbounded queue
+     */
+    MeasuredExecutor(int threads, final String name, int queueCapacity) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                queueCapacity > 0 ? new LinkedBlockingQueue<Runnable>(queueCapacity) : new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + "-" + count.incrementAndGet());
+                    }
+                }, new RejectedExecutionHandler() {
+
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Executor has been shut down");
+                        }
+                        try {
+                            // queue is full, wait for room
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queued = SystemClock.elapsedRealtime();
+        super.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                long cpuStart = SystemClock.currentThreadTimeMillis();
+                try {
+                    command.run();
+                } finally {
+                    taskCount.incrementAndGet();
+                    queueWaitMillis.addAndGet(start - queued);
+                    runMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+                    cpuMillis.addAndGet(SystemClock.currentThreadTimeMillis() - cpuStart);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add waiting the task did before it was given to the pool, for example waiting for a
+     * free download slot.
+     */
+    void addQueueWait(long millis) {
+        queueWaitMillis.addAndGet(millis);
+    }
+
+    /**
+     * Change number of threads. Running tasks finish before extra threads stop.
+     */
+    synchronized void resize(int threads) {
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        } else if (threads < getMaximumPoolSize()) {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+    }
+
+    long getMeasuredTaskCount() {
+        return taskCount.get();
+    }
+
+    long getQueueWaitMillis() {
+        return queueWaitMillis.get();
+    }
+
+    long getRunMillis() {
+        return runMillis.get();
+    }
+
+    long getCpuMillis() {
+        return cpuMillis.get();
+    }
+
+}
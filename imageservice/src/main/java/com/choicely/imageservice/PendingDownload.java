@@ -0,0 +1,174 @@
+package com.choicely.imageservice;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import okhttp3.Call;
+
+/**
+ * Download of one url, shared by everybody who asks for the url while it is in progress.
+ * Downloads are kept in a concurrent map by url, so joining one is a single lookup.
+ *
+ * A failed attempt can be retried with the same pending download, so it stays joinable while
+ * waiting for the retry without holding a download thread.
+ */
+class PendingDownload {
+
+    final String url;
+
+    private final List<ImageLoadListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean required;
+    private volatile boolean cancelled = false;
+    private volatile Call call;
+    private volatile int attempts = 0;
+    private Runnable retry; // scheduled retry, null when not waiting for one
+    private int failedStatusCode = -1;
+
+    private boolean finished = false;
+    private boolean success;
+    private int statusCode;
+    private File file;
+
+    /**
+     * @param required true if download must not be cancelled even when no view or request
+     *                 waits for it anymore
+     */
+    PendingDownload(String url, boolean required) {
+        this.url = url;
+        this.required = required;
+    }
+
+    /**
+     * Add listener of the download. Listener of a finished download is called right away.
+     */
+    void addListener(ImageLoadListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!finished) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyFinished(listener);
+    }
+
+    void setRequired() {
+        required = true;
+    }
+
+    /**
+     * Check does somebody besides the waiting views still need the download.
+     */
+    boolean isWanted() {
+        if (required) {
+            return true;
+        }
+        for (ImageLoadListener listener : listeners) {
+            if (listener instanceof ImageRequest.DownloadListener
+                    && !((ImageRequest.DownloadListener) listener).request.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void setCall(Call call) {
+        this.call = call;
+        if (cancelled) {
+            call.cancel();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Count a new attempt of the download.
+     *
+     * @return Number of attempts including this one
+     */
+    int startAttempt() {
+        return ++attempts;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Mark download waiting for a retry.
+     *
+     * @param retry      Runnable scheduled to start the retry
+     * @param statusCode Status of the failed attempt
+     * @return false if download was cancelled and should be finished instead
+     */
+    synchronized boolean waitRetry(Runnable retry, int statusCode) {
+        if (cancelled) {
+            return false;
+        }
+        this.retry = retry;
+        this.failedStatusCode = statusCode;
+        return true;
+    }
+
+    /**
+     * Take the scheduled retry, so that only one of the retry and the cancellation proceeds.
+     *
+     * @param retry Expected retry, or null to take any
+     * @return The retry or null if it was already taken
+     */
+    synchronized Runnable takeRetry(Runnable retry) {
+        Runnable current = this.retry;
+        if (current == null || (retry != null && retry != current)) {
+            return null;
+        }
+        this.retry = null;
+        return current;
+    }
+
+    /**
+     * Status of the last failed attempt.
+     */
+    synchronized int getFailedStatusCode() {
+        return failedStatusCode;
+    }
+
+    void cancel() {
+        cancelled = true;
+        Call c = call;
+        if (c != null) {
+            c.cancel();
+        }
+    }
+
+    void onProgress(float progress) {
+        for (ImageLoadListener listener : listeners) {
+            listener.onProgress(progress);
+        }
+    }
+
+    void finish(boolean success, int statusCode, File file) {
+        synchronized (this) {
+            this.finished = true;
+            this.success = success;
+            this.statusCode = statusCode;
+            this.file = file;
+        }
+        for (ImageLoadListener listener : listeners) {
+            notifyFinished(listener);
+        }
+    }
+
+    private void notifyFinished(ImageLoadListener listener) {
+        if (success) {
+            listener.onSuccess(file);
+        } else {
+            listener.onFail(statusCode);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.choicely.imageservice;
+
+/**
+ * Bounds of the download, disk read and decode thread pools.
+ *
+ * Pools start from the number of processor cores: decoding is limited by the CPU so it starts
+ * with one thread per core, downloads mostly wait for the network so they start with twice as
+ * many. Flash storage gains little from many parallel reads, so disk reads start with two.
+ * Sizes are then adjusted within the bounds by measured queue waiting, time threads spend
+ * blocked and CPU usage of the process, see {@link PoolTuner}. Pools with equal minimum and
+ * maximum have a fixed size.
+ *
+ * <pre>
+ *     ChoicelyImageService.init(context, FileSystem.APPLICATION_CACHE, "images/",
+ *             new PoolSizing().setDownloadThreads(2, 12));
+ * </pre>
+ */
+public class PoolSizing {
+
+    final int cores;
+    int minDownloadThreads;
+    int maxDownloadThreads;
+    int minDecodeThreads;
+    int maxDecodeThreads;
+    int minIoThreads;
+    int maxIoThreads;
+
+    /**
+     * Adaptive sizing with bounds based on the number of cores.
+     */
+    public PoolSizing() {
+        cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        minDownloadThreads = 2;
+        maxDownloadThreads = Math.max(4, cores * 4);
+        minDecodeThreads = 1;
+        maxDecodeThreads = Math.max(2, cores * 2);
+        minIoThreads = 1;
+        maxIoThreads = 4;
+    }
+
+    /**
+     * Sizing with fixed number of threads. Disk reads use at most two threads.
+     */
+    public static PoolSizing fixed(int downloadThreads, int decodeThreads) {
+        int ioThreads = Math.min(2, decodeThreads);
+        return new PoolSizing()
+                .setDownloadThreads(downloadThreads, downloadThreads)
+                .setDecodeThreads(decodeThreads, decodeThreads)
+                .setIoThreads(ioThreads, ioThreads);
+    }
+
+    public PoolSizing setDownloadThreads(int min, int max) {
+        minDownloadThreads = Math.max(1, min);
+        maxDownloadThreads = Math.max(minDownloadThreads, max);
+        return this;
+    }
+
+    public PoolSizing setDecodeThreads(int min, int max) {
+        minDecodeThreads = Math.max(1, min);
+        maxDecodeThreads = Math.max(minDecodeThreads, max);
+        return this;
+    }
+
+    /**
+     * Threads reading image files and their metadata from disk.
+     */
+    public PoolSizing setIoThreads(int min, int max) {
+        minIoThreads = Math.max(1, min);
+        maxIoThreads = Math.max(minIoThreads, max);
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return minDownloadThreads != maxDownloadThreads || minDecodeThreads != maxDecodeThreads
+                || minIoThreads != maxIoThreads;
+    }
+
+    int getInitialDownloadThreads() {
+        return clamp(cores * 2, minDownloadThreads, maxDownloadThreads);
+    }
+
+    int getInitialDecodeThreads() {
+        return clamp(cores, minDecodeThreads, maxDecodeThreads);
+    }
+
+    int getInitialIoThreads() {
+        return clamp(2, minIoThreads, maxIoThreads);
+    }
+
+    static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PoolSizing[cores=%d, download=%d-%d, io=%d-%d, decode=%d-%d]",
+                cores, minDownloadThreads, maxDownloadThreads, minIoThreads, maxIoThreads,
+                minDecodeThreads, maxDecodeThreads);
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.choicely.imageservice;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+/**
+ * Measures the download, disk read and decode stages and resizes their pools within the bounds
+ * of {@link PoolSizing}.
+ *
+ * A thread that spends fraction b of its running time blocked keeps one core busy when there
+ * are 1 / (1 - b) of them, so the ideal size of a pool is cores / (1 - b). Download threads
+ * mostly wait for the network and decode threads mostly use the CPU, so the same rule gives
+ * many download threads and about one decode thread per core. Disk read threads wait for the
+ * storage, their bounds keep them from flooding it.
+ *
+ * A pool grows toward the ideal only when its tasks wait in the queue, and never when the
+ * process already uses all cores, because extra threads would only compete for the CPU. A
+ * pool above the ideal shrinks one thread at a time.
+ *
+ * Tuning runs at most every {@link #TUNE_INTERVAL_MILLIS} on the dispatcher thread, so an idle
+ * service does no work. Pools with a fixed size are measured the same way, their utilisation
+ * is the share of thread time spent running tasks during the latest interval.
+ */
+public class PoolTuner extends ChoicelyLogService {
+
+    public static final long TUNE_INTERVAL_MILLIS = 2000;
+
+    /**
+     * Average queue wait that is worth adding threads for.
+     */
+    private static final long QUEUE_WAIT_THRESHOLD_MILLIS = 50;
+
+    /**
+     * Share of all cores used by the process above which pools do not grow.
+     */
+    private static final float CPU_BUSY_THRESHOLD = 0.9f;
+
+    private static final int MIN_SAMPLES = 4;
+
+    private final PoolSizing sizing;
+    private final Stage download;
+    private final Stage io;
+    private final Stage decode;
+    private final ResizableSemaphore downloadSlots;
+
+    private long lastTuneTime;
+    private long lastProcessCpu;
+    private float cpuUsage = 0f;
+    private int resizeCount = 0;
+
+    private static class Stage {
+
+        final String name;
+        final MeasuredExecutor executor;
+        final int min;
+        final int max;
+        int size;
+
+        long lastCount;
+        long lastQueueWait;
+        long lastRun;
+        long lastCpu;
+        long lastUtilizationRun;
+
+        float blockedRatio = 0f;
+        float utilization = 0f;
+        long averageQueueWait = 0;
+
+        Stage(String name, MeasuredExecutor executor, int size, int min, int max) {
+            this.name = name;
+            this.executor = executor;
+            this.size = size;
+            this.min = min;
+            this.max = max;
+        }
+
+    }
+
+    PoolTuner(PoolSizing sizing, MeasuredExecutor downloadPool, ResizableSemaphore downloadSlots,
+              MeasuredExecutor ioPool, MeasuredExecutor decodePool) {
+        super("PoolTuner");
+        this.sizing = sizing;
+        this.downloadSlots = downloadSlots;
+        this.download = new Stage("download", downloadPool, downloadSlots.getSize(),
+                sizing.minDownloadThreads, sizing.maxDownloadThreads);
+        this.io = new Stage("io", ioPool, ioPool.getMaximumPoolSize(),
+                sizing.minIoThreads, sizing.maxIoThreads);
+        this.decode = new Stage("decode", decodePool, decodePool.getMaximumPoolSize(),
+                sizing.minDecodeThreads, sizing.maxDecodeThreads);
+        this.lastTuneTime = SystemClock.elapsedRealtime();
+        this.lastProcessCpu = Process.getElapsedCpuTime();
+        setDebug(false);
+    }
+
+    /**
+     * Tune pool sizes if enough time has passed since the previous tuning.
+     */
+    synchronized void maybeTune() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastTuneTime;
+        if (elapsed < TUNE_INTERVAL_MILLIS) {
+            return;
+        }
+        long processCpu = Process.getElapsedCpuTime();
+        cpuUsage = (processCpu - lastProcessCpu) / (float) (elapsed * sizing.cores);
+        lastTuneTime = now;
+        lastProcessCpu = processCpu;
+
+        boolean cpuBusy = cpuUsage >= CPU_BUSY_THRESHOLD;
+        int downloadSize = tune(download, elapsed, cpuBusy);
+        if (downloadSize != download.size) {
+            download.executor.resize(downloadSize);
+            downloadSlots.resize(downloadSize);
+            onResized(download, downloadSize);
+        }
+        int ioSize = tune(io, elapsed, cpuBusy);
+        if (ioSize != io.size) {
+            io.executor.resize(ioSize);
+            onResized(io, ioSize);
+        }
+        int decodeSize = tune(decode, elapsed, cpuBusy);
+        if (decodeSize != decode.size) {
+            decode.executor.resize(decodeSize);
+            onResized(decode, decodeSize);
+        }
+    }
+
+    /**
+     * @return New size of the stage
+     */
+    private int tune(Stage stage, long elapsed, boolean cpuBusy) {
+        MeasuredExecutor executor = stage.executor;
+        long count = executor.getMeasuredTaskCount();
+        long queueWait = executor.getQueueWaitMillis();
+        long run = executor.getRunMillis();
+        long cpu = executor.getCpuMillis();
+        stage.utilization = Math.min(1f, (run - stage.lastUtilizationRun) / (float) (elapsed * stage.size));
+        stage.lastUtilizationRun = run;
+        long tasks = count - stage.lastCount;
+        if (tasks < MIN_SAMPLES) {
+            // too few tasks to say anything, keep collecting
+            return stage.size;
+        }
+        long runDelta = run - stage.lastRun;
+        long cpuDelta = cpu - stage.lastCpu;
+        stage.averageQueueWait = (queueWait - stage.lastQueueWait) / tasks;
+        stage.blockedRatio = runDelta > 0 ? Math.max(0f, 1f - Math.min(1f, cpuDelta / (float) runDelta)) : 0f;
+        stage.lastCount = count;
+        stage.lastQueueWait = queueWait;
+        stage.lastRun = run;
+        stage.lastCpu = cpu;
+
+        int ideal = (int) Math.ceil(sizing.cores / Math.max(0.05f, 1f - stage.blockedRatio));
+        if (cpuBusy) {
+            // more threads would only compete for the CPU
+            ideal = Math.min(ideal, stage.blockedRatio < 0.5f ? stage.size - 1 : stage.size);
+        }
+        int size = stage.size;
+        if (ideal > size && stage.averageQueueWait >= QUEUE_WAIT_THRESHOLD_MILLIS) {
+            size += Math.max(1, (ideal - size) / 2);
+        } else if (ideal < size) {
+            size--;
+        }
+        d("[%s]tasks[%d] wait[%dms] blocked[%.2f] cpu[%.2f] ideal[%d]", stage.name, tasks,
+                stage.averageQueueWait, stage.blockedRatio, cpuUsage, ideal);
+        return PoolSizing.clamp(size, stage.min, stage.max);
+    }
+
+    private void onResized(Stage stage, int size) {
+        i("Resize[%s] %d -> %d, wait[%dms] blocked[%.2f] cpu[%.2f]", stage.name, stage.size, size,
+                stage.averageQueueWait, stage.blockedRatio, cpuUsage);
+        stage.size = size;
+        resizeCount++;
+    }
+
+    public synchronized int getDownloadThreads() {
+        return download.size;
+    }
+
+    public synchronized int getIoThreads() {
+        return io.size;
+    }
+
+    public synchronized int getDecodeThreads() {
+        return decode.size;
+    }
+
+    /**
+     * Share of download thread time spent running downloads during the latest interval.
+     */
+    public synchronized float getDownloadUtilization() {
+        return download.utilization;
+    }
+
+    /**
+     * Share of disk read thread time spent reading files during the latest interval.
+     */
+    public synchronized float getIoUtilization() {
+        return io.utilization;
+    }
+
+    /**
+     * Share of decode thread time spent decoding during the latest interval.
+     */
+    public synchronized float getDecodeUtilization() {
+        return decode.utilization;
+    }
+
+    /**
+     * Share of running time download threads spent blocked on the network, measured during
+     * the latest tuning interval.
+     */
+    public synchronized float getDownloadBlockedRatio() {
+        return download.blockedRatio;
+    }
+
+    public synchronized float getIoBlockedRatio() {
+        return io.blockedRatio;
+    }
+
+    public synchronized float getDecodeBlockedRatio() {
+        return decode.blockedRatio;
+    }
+
+    /**
+     * Share of all cores used by the process during the latest tuning interval.
+     */
+    public synchronized float getCpuUsage() {
+        return cpuUsage;
+    }
+
+    public synchronized int getResizeCount() {
+        return resizeCount;
+    }
+
+    public PoolSizing getSizing() {
+        return sizing;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PoolTuner[%s, %s, %s, cpu=%.2f, resizes=%d]",
+                toString(download), toString(io), toString(decode), cpuUsage, resizeCount);
+    }
+
+    private static String toString(Stage stage) {
+        return String.format("%s=%d(util=%.2f, wait=%dms, blocked=%.2f)", stage.name, stage.size,
+                stage.utilization, stage.averageQueueWait, stage.blockedRatio);
+    }
+
+}
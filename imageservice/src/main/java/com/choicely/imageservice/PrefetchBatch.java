@@ -0,0 +1,125 @@
+package com.choicely.imageservice;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handle of images prefetched together with
+ * {@link ChoicelyImageService#prefetch(java.util.Collection, boolean, PrefetchListener)}.
+ */
+public class PrefetchBatch {
+
+    private static final Handler UI_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final int size;
+    @Nullable
+    private final PrefetchListener listener;
+    private final List<ImageRequest> running = new ArrayList<>();
+
+    private int succeeded = 0;
+    private int failed = 0;
+    private volatile boolean cancelled = false;
+
+    PrefetchBatch(int size, @Nullable PrefetchListener listener) {
+        this.size = size;
+        this.listener = listener;
+        if (size == 0) {
+            notifyComplete();
+        }
+    }
+
+    /**
+     * Number of images in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    /**
+     * Number of images that failed or were cancelled.
+     */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    public synchronized boolean isDone() {
+        return succeeded + failed >= size;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel images not loaded yet. Downloads other requests need are not cancelled.
+     */
+    public void cancel() {
+        List<ImageRequest> list;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            list = new ArrayList<>(running);
+        }
+        for (ImageRequest request : list) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * @return false if batch was cancelled and the request should not be started
+     */
+    synchronized boolean addRequest(ImageRequest request) {
+        if (cancelled) {
+            return false;
+        }
+        running.add(request);
+        return true;
+    }
+
+    void onItemDone(@Nullable ImageRequest request, boolean success) {
+        boolean complete;
+        synchronized (this) {
+            if (request != null) {
+                running.remove(request);
+            }
+            if (success) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            complete = succeeded + failed == size;
+        }
+        if (complete) {
+            notifyComplete();
+        }
+    }
+
+    private void notifyComplete() {
+        if (listener == null) {
+            return;
+        }
+        UI_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPrefetchComplete(PrefetchBatch.this);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PrefetchBatch[size=%d, succeeded=%d, failed=%d, cancelled=%s]",
+                size, succeeded, failed, cancelled);
+    }
+
+}
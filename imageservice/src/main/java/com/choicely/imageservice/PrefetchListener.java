@@ -0,0 +1,14 @@
+package com.choicely.imageservice;
+
+/**
+ * Listener of a {@link PrefetchBatch}.
+ */
+public interface PrefetchListener {
+
+    /**
+     * Called in UI thread when every image of the batch has been loaded, has failed or was
+     * cancelled.
+     */
+    void onPrefetchComplete(PrefetchBatch batch);
+
+}
@@ -0,0 +1,284 @@
+package com.choicely.imageservice;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds prefetched images to the request scheduler a few at a time.
+ *
+ * Only {@link #getMaxConcurrent()} prefetch requests are in the scheduler at once, so
+ * prefetching never fills the download threads, and the rest wait here. Downloaded bytes are
+ * limited with a token bucket holding one second of the byte budget. Budget is reserved when a
+ * download starts, by the average size of images prefetched so far, and the difference to the
+ * real size is settled when it finishes. Downloads running at once therefore can not use more
+ * budget than there is, apart from the error of the estimate.
+ */
+class Prefetcher extends ChoicelyLogService {
+
+    static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /**
+     * Budget reserved for a download before any prefetched image has been measured.
+     */
+    static final long DEFAULT_ESTIMATED_BYTES = 128 * 1024;
+
+    private final ChoicelyImageService service;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger pumpRequests = new AtomicInteger();
+
+    private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private volatile boolean paused = false;
+
+    private long maxBytesPerSecond = 0; // zero is unlimited
+    private long budgetBytes = 0;
+    private long budgetTime = 0;
+    private long estimatedBytes = DEFAULT_ESTIMATED_BYTES; // running average of downloaded sizes
+    private boolean pumpScheduled = false;
+
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Prefetcher.this) {
+                pumpScheduled = false;
+            }
+            pump();
+        }
+    };
+
+    private static class Item {
+
+        final ImageChooser info;
+        final boolean decode;
+        final PrefetchBatch batch;
+
+        Item(ImageChooser info, boolean decode, PrefetchBatch batch) {
+            this.info = info;
+            this.decode = decode;
+            this.batch = batch;
+        }
+
+    }
+
+    Prefetcher(ChoicelyImageService service) {
+        super("Prefetcher");
+        this.service = service;
+        setDebug(false);
+    }
+
+    PrefetchBatch prefetch(Collection<ImageChooser> images, boolean decode, @Nullable PrefetchListener listener) {
+        PrefetchBatch batch = new PrefetchBatch(images.size(), listener);
+        for (ImageChooser info : images) {
+            queue.add(new Item(info, decode, batch));
+        }
+        d("Queued %d images", images.size());
+        pump();
+        return batch;
+    }
+
+    /**
+     * @param maxConcurrent     Maximum number of prefetch requests loading at once
+     * @param maxBytesPerSecond Maximum download rate of prefetching, zero for unlimited
+     */
+    void setLimits(int maxConcurrent, long maxBytesPerSecond) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        synchronized (this) {
+            this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+            this.budgetBytes = this.maxBytesPerSecond;
+            this.budgetTime = SystemClock.elapsedRealtime();
+        }
+        pump();
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            pump();
+        }
+    }
+
+    /**
+     * Start queued images while there is room for them. Images already cached finish while
+     * they are started, so pumping is not reentrant: nested calls are handled by the loop.
+     */
+    private void pump() {
+        if (pumpRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            startQueued();
+            requests = pumpRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void startQueued() {
+        while (!paused) {
+            long delay = getBudgetDelay();
+            if (delay > 0) {
+                schedulePump(delay);
+                return;
+            }
+            int current = running.get();
+            if (current >= maxConcurrent) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Item item = queue.poll();
+            if (item == null) {
+                running.decrementAndGet();
+                return;
+            }
+            start(item);
+        }
+    }
+
+    private void start(final Item item) {
+        if (item.batch.isCancelled()) {
+            finish(item, null, false, 0, 0);
+            return;
+        }
+        final boolean cached = service.hasImage(item.info);
+        final long reserved = cached ? 0 : reserveBudget();
+        final ImageRequest request = service.request(item.info, item.info.getPriority(Priority.PREFETCH), item.decode);
+        if (!item.batch.addRequest(request)) {
+            request.cancel(true);
+        }
+        request.addListener(new ImageRequestListener() {
+
+            @Override
+            public void onProgress(ImageRequest request, float progress) {
+            }
+
+            @Override
+            public void onComplete(ImageRequest request, Bitmap bitmap) {
+                // memory cache keeps its own reference
+                request.release();
+                long bytes = 0;
+                if (!cached) {
+                    File file = service.getImageFile(item.info);
+                    bytes = file != null ? file.length() : 0;
+                }
+                finish(item, request, true, bytes, reserved);
+            }
+
+            @Override
+            public void onFail(ImageRequest request, int statusCode) {
+                d("[%s]Prefetch failed[%d]", item.info.url, statusCode);
+                finish(item, request, false, 0, reserved);
+            }
+
+        }, ImageRequest.DIRECT);
+    }
+
+    /**
+     * @param bytes    Bytes downloaded for the item
+     * @param reserved Budget reserved for the item when it was started
+     */
+    private void finish(Item item, @Nullable ImageRequest request, boolean success, long bytes, long reserved) {
+        running.decrementAndGet();
+        settleBudget(bytes, reserved);
+        item.batch.onItemDone(request, success);
+        pump();
+    }
+
+    private synchronized long getBudgetDelay() {
+        if (maxBytesPerSecond <= 0) {
+            return 0;
+        }
+        refillBudget();
+        return budgetBytes >= 0 ? 0 : 1 + (-budgetBytes * 1000 / maxBytesPerSecond);
+    }
+
+    /**
+     * Take the estimated size of a download from the budget before it starts.
+     *
+     * @return Reserved bytes, to be settled when the download finishes
+     */
+    private synchronized long reserveBudget() {
+        if (maxBytesPerSecond <= 0) {
+            return 0;
+        }
+        refillBudget();
+        budgetBytes -= estimatedBytes;
+        return estimatedBytes;
+    }
+
+    /**
+     * Charge the real size of a finished download instead of its reservation.
+     */
+    private synchronized void settleBudget(long bytes, long reserved) {
+        if (bytes > 0) {
+            estimatedBytes = (estimatedBytes * 3 + bytes) / 4;
+        }
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        refillBudget();
+        // unused reservation is returned, but the bucket never holds more than one second
+        budgetBytes = Math.min(maxBytesPerSecond, budgetBytes - (bytes - reserved));
+    }
+
+    private void refillBudget() {
+        long now = SystemClock.elapsedRealtime();
+        budgetBytes = Math.min(maxBytesPerSecond, budgetBytes + (now - budgetTime) * maxBytesPerSecond / 1000);
+        budgetTime = now;
+    }
+
+    private synchronized void schedulePump(long delay) {
+        if (pumpScheduled) {
+            return;
+        }
+        pumpScheduled = true;
+        d("Byte budget used, waiting %d ms", delay);
+        handler.postDelayed(pumpRunnable, delay);
+    }
+
+    /**
+     * Remove queued images with the tag. Their batches count them as failed.
+     *
+     * @return Number of removed images
+     */
+    int cancel(Object tag) {
+        int count = 0;
+        Iterator<Item> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Item item = iterator.next();
+            if (tag.equals(item.info.tag) && queue.remove(item)) {
+                item.batch.onItemDone(null, false);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of prefetch requests loading right now.
+     */
+    int getRunningCount() {
+        return running.get();
+    }
+
+    int getQueuedCount() {
+        return queue.size();
+    }
+
+}
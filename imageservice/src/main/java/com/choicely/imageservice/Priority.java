@@ -0,0 +1,24 @@
+package com.choicely.imageservice;
+
+/**
+ * Scheduling class of an image request. Requests of a higher class are served first, but
+ * waiting requests gain priority over time so lower classes are not starved.
+ */
+public enum Priority {
+
+    /**
+     * Image shown on screen right now. Newest visible request is served first.
+     */
+    VISIBLE,
+
+    /**
+     * Image that will probably be shown soon. Served in request order.
+     */
+    PREFETCH,
+
+    /**
+     * Work nobody is waiting for, like refreshing stale cache entries. Served in request order.
+     */
+    BACKGROUND,;
+
+}
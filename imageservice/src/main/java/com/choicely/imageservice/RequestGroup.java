@@ -0,0 +1,93 @@
+package com.choicely.imageservice;
+
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.support.annotation.NonNull;
+
+/**
+ * Requests of one screen, tied to the lifecycle of its Activity or Fragment.
+ *
+ * Requests join the group when the group is set as their tag. Requests are paused while the
+ * screen is stopped and resumed when it starts again. When the screen is destroyed the group
+ * is cancelled: queued work is dropped and downloads nobody else needs are stopped, instead of
+ * loading images for views that are gone.
+ *
+ * <pre>
+ *     RequestGroup group = RequestGroup.create(this); // in onCreate
+ *     service.setImage(new ImageChooser(url).setTag(group), imageView);
+ * </pre>
+ *
+ * @see ChoicelyImageService#pause(Object)
+ * @see ChoicelyImageService#resume(Object)
+ * @see ChoicelyImageService#cancel(Object)
+ */
+public class RequestGroup implements LifecycleObserver {
+
+    private final ChoicelyImageService service;
+    private final String name;
+
+    private RequestGroup(ChoicelyImageService service, String name) {
+        this.service = service;
+        this.name = name;
+    }
+
+    /**
+     * Create group that follows the lifecycle of the owner. Must be called in the UI thread.
+     *
+     * @param owner Activity or Fragment, for example AppCompatActivity
+     */
+    public static RequestGroup create(@NonNull LifecycleOwner owner) {
+        RequestGroup group = new RequestGroup(ChoicelyImageService.getInstance(),
+                owner.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(owner)));
+        owner.getLifecycle().addObserver(group);
+        return group;
+    }
+
+    /**
+     * Hold requests of the group that have not started yet.
+     */
+    public void pause() {
+        service.pause(this);
+    }
+
+    public void resume() {
+        service.resume(this);
+    }
+
+    public boolean isPaused() {
+        return service.isPaused(this);
+    }
+
+    /**
+     * Cancel all requests of the group.
+     */
+    public void cancel() {
+        service.cancel(this);
+    }
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_START)
+    void onStart() {
+        if (isPaused()) {
+            resume();
+        }
+    }
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+    void onStop() {
+        pause();
+    }
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+    void onDestroy(LifecycleOwner owner) {
+        owner.getLifecycle().removeObserver(this);
+        cancel();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestGroup[" + name + "]";
+    }
+
+}
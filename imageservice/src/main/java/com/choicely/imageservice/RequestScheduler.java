@@ -0,0 +1,546 @@
+package com.choicely.imageservice;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queue of image requests waiting for a download or assign thread.
+ *
+ * Every {@link Priority} has its own queue and lock. Visible requests are served newest first,
+ * because on a scrolling list the latest request is the one on screen, other classes oldest
+ * first. A request rises one class for every {@link #AGING_STEP_MILLIS} it has waited, up to
+ * the visible class, so old visible requests and lower classes are eventually served even under
+ * constant load. Visible requests that have waited a step are served oldest first. All classes
+ * rise at most to the same level, so an aged lower class request ties with visible requests
+ * however long they have waited. Ties usually go to visible requests, but after
+ * {@link #VISIBLE_SHARE} visible requests in a row an aged lower class request wins the tie, so
+ * visible images get most of the dispatches and prefetching is never starved. Among lower
+ * classes ties go to the oldest request.
+ *
+ * Requests for an url that is being downloaded are parked until the download is ready, see
+ * {@link #park(Task)} and {@link #unpark(String)}. Downloads that found every download thread
+ * busy wait until one is free, best class first and hosts in turns, see
+ * {@link #parkForSlot(Task)}. Requests with a paused tag are held until the tag is resumed,
+ * see {@link #hold(Task)} and {@link #resume(Object)}.
+ *
+ * A dispatcher thread waits in {@link #take()} and wakes up only when a request is queued.
+ */
+public class RequestScheduler extends ChoicelyLogService {
+
+    /**
+     * Waiting time after which a request is served like it was one class higher.
+     */
+    public static final long AGING_STEP_MILLIS = 2000;
+
+    /**
+     * Visible requests served in a row while an aged lower class request waits, before the
+     * lower class request is served.
+     */
+    public static final int VISIBLE_SHARE = 4;
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final Map<Priority, LinkedBlockingDeque<Task>> queues = new EnumMap<>(Priority.class);
+    private final Map<String, List<Task>> parked = new HashMap<>();
+    private final List<Task> slotWaiting = new ArrayList<>();
+    private final Set<Object> pausedTags = new HashSet<>();
+    private final Map<Object, List<Task>> held = new HashMap<>();
+    private final Semaphore available = new Semaphore(0); // one permit per queued task
+
+    private final AtomicLongArray enqueuedCount = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLongArray dequeuedCount = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLongArray totalWaitMillis = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLongArray maxWaitMillis = new AtomicLongArray(PRIORITIES.length);
+    private final AtomicLong promotedCount = new AtomicLong();
+    private final AtomicInteger visibleStreak = new AtomicInteger(); // visible tasks served over tied lower classes
+
+    /**
+     * Order of tasks waiting outside the queues: better class first, then the oldest.
+     */
+    static final Comparator<Task> WAIT_ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return a.priority.ordinal() - b.priority.ordinal();
+            }
+            return a.enqueueTime < b.enqueueTime ? -1 : (a.enqueueTime == b.enqueueTime ? 0 : 1);
+        }
+    };
+
+    static class Task {
+
+        final ImageChooser info;
+        final Priority priority;
+        final long enqueueTime;
+        @Nullable
+        final ImageRequest request;
+        int type;
+        long slotWaitStart = -1; // when the task started waiting for a download thread
+        @Nullable
+        String host; // host of the download, set when the download is first tried
+        boolean dispatched = false; // wait has been recorded, later offers are not counted again
+
+        private Task(ImageChooser info, Priority priority, int type, @Nullable ImageRequest request,
+                     long enqueueTime) {
+            this.info = info;
+            this.priority = priority;
+            this.type = type;
+            this.request = request;
+            this.enqueueTime = enqueueTime;
+        }
+
+    }
+
+    RequestScheduler() {
+        super("RequestScheduler");
+        for (Priority priority : PRIORITIES) {
+            queues.put(priority, new LinkedBlockingDeque<Task>());
+        }
+        setDebug(false);
+    }
+
+    /**
+     * Queue a request.
+     *
+     * @param info     Requested image
+     * @param priority Scheduling class
+     * @param type     What should be done with the request, only meaningful to the caller
+     */
+    void offer(ImageChooser info, Priority priority, int type) {
+        offer(info, priority, type, null);
+    }
+
+    /**
+     * Queue a request with a handle waiting for it.
+     */
+    void offer(ImageChooser info, Priority priority, int type, @Nullable ImageRequest request) {
+        Task task = new Task(info, priority, type, request, now());
+        enqueuedCount.incrementAndGet(priority.ordinal());
+        offer(task);
+    }
+
+    /**
+     * Queue again a task that waited outside the queues. Task keeps its original age, and its
+     * wait is recorded only the first time it is dispatched.
+     */
+    void offer(Task task) {
+        if (task.priority == Priority.VISIBLE) {
+            queues.get(task.priority).offerFirst(task);
+        } else {
+            queues.get(task.priority).offerLast(task);
+        }
+        available.release();
+        d("offer[%s]%s", task.priority, task.info.url);
+    }
+
+    /**
+     * Take the request with the best aged priority, waiting until there is one.
+     */
+    Task take() throws InterruptedException {
+        available.acquire();
+        return select();
+    }
+
+    /**
+     * Take the request with the best aged priority.
+     *
+     * @return Task or null if all queues are empty
+     */
+    @Nullable
+    Task poll() {
+        if (!available.tryAcquire()) {
+            return null;
+        }
+        return select();
+    }
+
+    /**
+     * Remove the best task. Caller must hold a permit, so there is always a task to find.
+     */
+    private Task select() {
+        while (true) {
+            long now = now();
+            Task best = null;
+            long bestRank = Long.MAX_VALUE;
+            boolean lowerTied = false; // an aged lower class task tied with a visible one
+            for (Priority priority : PRIORITIES) {
+                LinkedBlockingDeque<Task> queue = queues.get(priority);
+                // oldest task of the class ages the most, for visible class it is the last one
+                Task candidate = priority == Priority.VISIBLE ? queue.peekLast() : queue.peekFirst();
+                if (candidate == null) {
+                    continue;
+                }
+                long age = now - candidate.enqueueTime;
+                long rank = Math.max(priority.ordinal() - age / AGING_STEP_MILLIS,
+                        Priority.VISIBLE.ordinal());
+                if (priority == Priority.VISIBLE && age < AGING_STEP_MILLIS) {
+                    // nothing has aged yet, newest visible first
+                    candidate = queue.peekFirst();
+                    if (candidate == null) {
+                        continue;
+                    }
+                }
+                if (rank == bestRank && best != null) {
+                    // only lower classes come after the best, visible is checked first
+                    if (best.priority == Priority.VISIBLE) {
+                        lowerTied = true;
+                        if (visibleStreak.get() >= VISIBLE_SHARE) {
+                            best = candidate;
+                        }
+                    } else if (candidate.enqueueTime < best.enqueueTime) {
+                        best = candidate;
+                    }
+                } else if (rank < bestRank) {
+                    best = candidate;
+                    bestRank = rank;
+                    lowerTied = false;
+                }
+            }
+            if (best == null) {
+                // task of the permit is being offered right now
+                Thread.yield();
+                continue;
+            }
+            // another thread may have taken the task between peek and remove
+            if (queues.get(best.priority).removeFirstOccurrence(best)) {
+                if (best.priority != Priority.VISIBLE) {
+                    visibleStreak.set(0);
+                } else if (lowerTied) {
+                    visibleStreak.incrementAndGet();
+                }
+                if (!best.dispatched) {
+                    best.dispatched = true;
+                    if (now - best.enqueueTime >= AGING_STEP_MILLIS) {
+                        promotedCount.incrementAndGet();
+                    }
+                    recordWait(best, now);
+                }
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Clock of the request ages, milliseconds since boot.
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void recordWait(Task task, long now) {
+        int index = task.priority.ordinal();
+        long wait = now - task.enqueueTime;
+        dequeuedCount.incrementAndGet(index);
+        totalWaitMillis.addAndGet(index, wait);
+        long max;
+        do {
+            max = maxWaitMillis.get(index);
+        } while (wait > max && !maxWaitMillis.compareAndSet(index, max, wait));
+    }
+
+    /**
+     * Hold task until download of its url is ready. Caller must synchronize parking and
+     * unparking with its own download bookkeeping.
+     */
+    void park(Task task) {
+        synchronized (parked) {
+            List<Task> list = parked.get(task.info.url);
+            if (list == null) {
+                list = new ArrayList<>();
+                parked.put(task.info.url, list);
+            }
+            list.add(task);
+        }
+        d("park[%s]", task.info.url);
+    }
+
+    /**
+     * Queue again tasks parked for the url. Tasks keep their original age.
+     *
+     * @return Number of tasks queued
+     */
+    int unpark(String url) {
+        List<Task> list;
+        synchronized (parked) {
+            list = parked.remove(url);
+        }
+        if (list == null) {
+            return 0;
+        }
+        for (Task task : list) {
+            offer(task);
+        }
+        return list.size();
+    }
+
+    /**
+     * Hold task until a download thread is free. Caller must synchronize parking with its own
+     * download thread bookkeeping, and call {@link #unparkForSlot(HostLimiter)} when a thread is
+     * freed.
+     */
+    void parkForSlot(Task task) {
+        synchronized (slotWaiting) {
+            if (task.slotWaitStart < 0) {
+                task.slotWaitStart = now();
+            }
+            slotWaiting.add(task);
+        }
+        d("parkForSlot[%s]", task.info.url);
+    }
+
+    /**
+     * Queue again the best task waiting for a download thread: best class first, then the task
+     * of the least busy host, then the oldest. Hosts with waiting downloads take turns this way
+     * instead of the host with most waiting downloads taking every free thread. Task keeps its
+     * original age.
+     *
+     * @return true if a task was queued
+     */
+    boolean unparkForSlot(HostLimiter hostLimiter) {
+        Task task = null;
+        synchronized (slotWaiting) {
+            for (Task candidate : slotWaiting) {
+                if (task == null || compareSlotWaiters(candidate, task, hostLimiter) < 0) {
+                    task = candidate;
+                }
+            }
+            if (task != null) {
+                slotWaiting.remove(task);
+            }
+        }
+        if (task == null) {
+            return false;
+        }
+        offer(task);
+        return true;
+    }
+
+    private static int compareSlotWaiters(Task a, Task b, HostLimiter hostLimiter) {
+        if (a.priority != b.priority) {
+            return a.priority.ordinal() - b.priority.ordinal();
+        }
+        if (a.host != null && b.host != null && !a.host.equals(b.host)) {
+            int load = hostLimiter.compareLoad(a.host, b.host);
+            if (load != 0) {
+                return load;
+            }
+        }
+        return WAIT_ORDER.compare(a, b);
+    }
+
+    /**
+     * Hold tasks with the tag instead of dispatching them, until the tag is resumed.
+     */
+    void pause(Object tag) {
+        synchronized (held) {
+            pausedTags.add(tag);
+        }
+        d("pause[%s]", tag);
+    }
+
+    /**
+     * Stop holding tasks with the tag.
+     *
+     * @return Tasks held while the tag was paused, caller decides which of them to queue again
+     */
+    List<Task> resume(Object tag) {
+        List<Task> list;
+        synchronized (held) {
+            pausedTags.remove(tag);
+            list = held.remove(tag);
+        }
+        d("resume[%s]", tag);
+        return list != null ? list : new ArrayList<Task>();
+    }
+
+    /**
+     * Find queued, parked and slot waiting tasks with the tag. Tasks stay where they are.
+     */
+    List<Task> findTasks(Object tag) {
+        List<Task> list = new ArrayList<>();
+        for (Priority priority : PRIORITIES) {
+            for (Task task : queues.get(priority)) {
+                if (tag.equals(task.info.tag)) {
+                    list.add(task);
+                }
+            }
+        }
+        synchronized (parked) {
+            for (List<Task> tasks : parked.values()) {
+                for (Task task : tasks) {
+                    if (tag.equals(task.info.tag)) {
+                        list.add(task);
+                    }
+                }
+            }
+        }
+        synchronized (slotWaiting) {
+            for (Task task : slotWaiting) {
+                if (tag.equals(task.info.tag)) {
+                    list.add(task);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Forget the tag: remove tasks held for it and stop pausing it.
+     *
+     * @return Removed tasks
+     */
+    List<Task> clear(Object tag) {
+        List<Task> list;
+        synchronized (held) {
+            pausedTags.remove(tag);
+            list = held.remove(tag);
+        }
+        return list != null ? list : new ArrayList<Task>();
+    }
+
+    boolean isPaused(Object tag) {
+        synchronized (held) {
+            return pausedTags.contains(tag);
+        }
+    }
+
+    /**
+     * Hold task if its tag is paused.
+     *
+     * @return true if task was held and must not be dispatched now
+     */
+    boolean hold(Task task) {
+        Object tag = task.info.tag;
+        if (tag == null) {
+            return false;
+        }
+        synchronized (held) {
+            if (!pausedTags.contains(tag)) {
+                return false;
+            }
+            List<Task> list = held.get(tag);
+            if (list == null) {
+                list = new ArrayList<>();
+                held.put(tag, list);
+            }
+            list.add(task);
+        }
+        d("hold[%s]%s", tag, task.info.url);
+        return true;
+    }
+
+    /**
+     * Queue a held task again in given class. Task starts aging from now. It is counted as a
+     * new request only if it was never dispatched before it was held.
+     */
+    void requeue(Task task, Priority priority) {
+        Task requeued = new Task(task.info, priority, task.type, task.request, now());
+        requeued.dispatched = task.dispatched;
+        if (!task.dispatched) {
+            enqueuedCount.incrementAndGet(priority.ordinal());
+        }
+        offer(requeued);
+    }
+
+    /**
+     * Number of requests waiting in the queue of given class.
+     */
+    public int getQueueDepth(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * Number of requests waiting for a download of the same url.
+     */
+    public int getParkedCount() {
+        int count = 0;
+        synchronized (parked) {
+            for (List<Task> list : parked.values()) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of downloads waiting for a free download thread.
+     */
+    public int getSlotWaitingCount() {
+        synchronized (slotWaiting) {
+            return slotWaiting.size();
+        }
+    }
+
+    /**
+     * Number of requests held because their tag is paused.
+     */
+    public int getHeldCount() {
+        int count = 0;
+        synchronized (held) {
+            for (List<Task> list : held.values()) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+    public long getEnqueuedCount(Priority priority) {
+        return enqueuedCount.get(priority.ordinal());
+    }
+
+    public long getDequeuedCount(Priority priority) {
+        return dequeuedCount.get(priority.ordinal());
+    }
+
+    /**
+     * Average time requests of the class waited before they were dispatched.
+     */
+    public long getAverageWaitMillis(Priority priority) {
+        long count = dequeuedCount.get(priority.ordinal());
+        return count > 0 ? totalWaitMillis.get(priority.ordinal()) / count : 0;
+    }
+
+    public long getMaxWaitMillis(Priority priority) {
+        return maxWaitMillis.get(priority.ordinal());
+    }
+
+    /**
+     * Number of requests served ahead of their class because they had waited too long.
+     */
+    public long getPromotedCount() {
+        return promotedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RequestScheduler[");
+        for (Priority priority : PRIORITIES) {
+            sb.append(priority).append("(depth=").append(getQueueDepth(priority))
+                    .append(", avgWait=").append(getAverageWaitMillis(priority))
+                    .append(", maxWait=").append(getMaxWaitMillis(priority))
+                    .append("), ");
+        }
+        return sb.append("parked=").append(getParkedCount())
+                .append(", waitingSlot=").append(getSlotWaitingCount())
+                .append(", held=").append(getHeldCount())
+                .append(", promoted=").append(getPromotedCount())
+                .append(']').toString();
+    }
+
+}
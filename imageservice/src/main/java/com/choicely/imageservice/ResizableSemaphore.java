@@ -0,0 +1,31 @@
+package com.choicely.imageservice;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Semaphore whose number of permits can be changed while permits are held. When shrunk below
+ * the held permits, new acquires wait until enough permits are released.
+ */
+class ResizableSemaphore extends Semaphore {
+
+    private int size;
+
+    ResizableSemaphore(int size) {
+        super(size);
+        this.size = size;
+    }
+
+    synchronized void resize(int newSize) {
+        if (newSize > size) {
+            release(newSize - size);
+        } else if (newSize < size) {
+            reducePermits(size - newSize);
+        }
+        size = newSize;
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.choicely.imageservice;
+
+import java.util.Date;
+import java.util.Random;
+
+import okhttp3.Response;
+
+/**
+ * Decides which failed downloads are tried again and how long to wait before each try.
+ *
+ * Failures are divided to three classes that each have their own number of attempts: network
+ * errors and timeouts (including 408), server errors (5xx) and throttling (429, and 503 with
+ * Retry-After). Other 4xx responses are permanent and never retried.
+ *
+ * Wait before the n:th retry is {@code baseDelay * 2^(n-1)}, at most the max delay, and a
+ * random share of it is taken off so that rows of a list failing together do not all retry
+ * at the same moment. When the response has a Retry-After header, it is waited instead and
+ * the random share is added on top of it.
+ *
+ * <pre>
+ *     ChoicelyImageService.getInstance().setRetryPolicy(new RetryPolicy()
+ *             .setServerErrorAttempts(2)
+ *             .setBackoff(500, 10000));
+ * </pre>
+ */
+public class RetryPolicy {
+
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    private final Random random = new Random();
+
+    private int networkAttempts = 3;
+    private int serverErrorAttempts = 3;
+    private int throttleAttempts = 3;
+    private long baseDelay = 1000;
+    private long maxDelay = 30000;
+    private long maxRetryAfter = 2 * 60 * 1000;
+    private float jitter = 0.5f;
+
+    /**
+     * Policy that never retries.
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy()
+                .setNetworkAttempts(1)
+                .setServerErrorAttempts(1)
+                .setThrottleAttempts(1);
+    }
+
+    /**
+     * Attempts of downloads failing without a response or with 408 Request Timeout.
+     */
+    public RetryPolicy setNetworkAttempts(int attempts) {
+        networkAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * Attempts of downloads failing with a 5xx response.
+     */
+    public RetryPolicy setServerErrorAttempts(int attempts) {
+        serverErrorAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * Attempts of downloads failing with 429 Too Many Requests, or with 503 Service
+     * Unavailable that tells when to try again.
+     */
+    public RetryPolicy setThrottleAttempts(int attempts) {
+        throttleAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * @param baseDelay Wait before the first retry in milliseconds, doubled for each retry
+     * @param maxDelay  Longest wait between attempts in milliseconds
+     */
+    public RetryPolicy setBackoff(long baseDelay, long maxDelay) {
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        return this;
+    }
+
+    /**
+     * @param jitter Share of the wait that is randomized, between [0, 1]
+     */
+    public RetryPolicy setJitter(float jitter) {
+        this.jitter = Math.max(0f, Math.min(1f, jitter));
+        return this;
+    }
+
+    /**
+     * Downloads are not retried when the server asks to wait longer than this.
+     *
+     * @param maxRetryAfter Time in milliseconds
+     */
+    public RetryPolicy setMaxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = Math.max(0, maxRetryAfter);
+        return this;
+    }
+
+    public int getNetworkAttempts() {
+        return networkAttempts;
+    }
+
+    public int getServerErrorAttempts() {
+        return serverErrorAttempts;
+    }
+
+    public int getThrottleAttempts() {
+        return throttleAttempts;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Check is the status a permanent failure that is never retried.
+     *
+     * @param statusCode Status of the response, or -1 if there was no response
+     */
+    public static boolean isPermanent(int statusCode) {
+        return statusCode >= 400 && statusCode < 500
+                && statusCode != HTTP_REQUEST_TIMEOUT && statusCode != HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Get wait before the next attempt of a failed download.
+     *
+     * @param attempts   Attempts made so far
+     * @param statusCode Status of the failed response, or -1 if there was no response
+     * @param retryAfter Wait asked by the server in milliseconds, or -1 if none
+     * @return Wait in milliseconds, or -1 if download should not be retried
+     */
+    long getRetryDelay(int attempts, int statusCode, long retryAfter) {
+        int maxAttempts;
+        if (statusCode == HTTP_TOO_MANY_REQUESTS
+                || (statusCode == HTTP_SERVICE_UNAVAILABLE && retryAfter >= 0)) {
+            maxAttempts = throttleAttempts;
+        } else if (statusCode < 0 || statusCode == HTTP_REQUEST_TIMEOUT) {
+            maxAttempts = networkAttempts;
+        } else if (statusCode >= 500 && statusCode < 600) {
+            maxAttempts = serverErrorAttempts;
+        } else {
+            return -1;
+        }
+        if (attempts >= maxAttempts) {
+            return -1;
+        }
+
+        if (retryAfter >= 0) {
+            if (retryAfter > maxRetryAfter) {
+                return -1;
+            }
+            return retryAfter + (long) (random.nextFloat() * jitter * Math.max(baseDelay, retryAfter));
+        }
+        long delay = baseDelay << Math.min(30, Math.max(0, attempts - 1));
+        if (delay < 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        return delay - (long) (random.nextFloat() * jitter * delay);
+    }
+
+    /**
+     * Read Retry-After header of the response, given either in seconds or as a date.
+     *
+     * @return Wait in milliseconds, or -1 if response has no valid Retry-After
+     */
+    static long getRetryAfter(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // not in seconds, try date
+        }
+        Date date = response.headers().getDate("Retry-After");
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy[network=%d, server=%d, throttle=%d, backoff=%d..%dms, jitter=%s]",
+                networkAttempts, serverErrorAttempts, throttleAttempts, baseDelay, maxDelay,
+                Float.toString(jitter));
+    }
+
+}
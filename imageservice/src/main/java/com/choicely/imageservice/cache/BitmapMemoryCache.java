@@ -0,0 +1,102 @@
+package com.choicely.imageservice.cache;
+
+import android.graphics.Bitmap;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+
+/**
+ * In-memory LRU cache of decoded bitmaps. Size is counted in bytes so a few
+ * large images can not push the process out of memory.
+ *
+ * When a {@link BitmapPool} is given, cached bitmaps hold a reference in the pool and are
+ * released to it when they leave the cache.
+ */
+public class BitmapMemoryCache extends LruCache<String, Bitmap> {
+
+    /**
+     * Default share of the maximum heap used for decoded bitmaps.
+     */
+    public static final int DEFAULT_HEAP_DIVIDER = 8;
+
+    @Nullable
+    private final BitmapPool bitmapPool;
+
+    public BitmapMemoryCache(int maxBytes) {
+        this(maxBytes, null);
+    }
+
+    public BitmapMemoryCache(int maxBytes, @Nullable BitmapPool bitmapPool) {
+        super(Math.max(1, maxBytes));
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Create cache sized to 1/8 of the maximum heap size.
+     */
+    public static BitmapMemoryCache createDefault(@Nullable BitmapPool bitmapPool) {
+        long maxBytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVIDER;
+        return new BitmapMemoryCache((int) Math.min(Integer.MAX_VALUE, maxBytes), bitmapPool);
+    }
+
+    /**
+     * Put bitmap to cache and mark it used in the bitmap pool.
+     */
+    public void putBitmap(String key, Bitmap bm) {
+        if (key == null || bm == null) {
+            return;
+        }
+        if (bitmapPool != null) {
+            bitmapPool.acquire(bm);
+        }
+        put(key, bm);
+    }
+
+    /**
+     * Get bitmap from cache and mark it used in the bitmap pool, so it can not be reused while
+     * the caller holds it. Caller must release the bitmap to the pool when done with it.
+     */
+    @Nullable
+    public Bitmap getAndAcquire(String key) {
+        if (bitmapPool == null) {
+            return get(key);
+        }
+        synchronized (bitmapPool) {
+            Bitmap bm = get(key);
+            if (bm != null) {
+                bitmapPool.acquire(bm);
+            }
+            return bm;
+        }
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return getBitmapByteSize(value);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (bitmapPool != null) {
+            bitmapPool.release(oldValue);
+        }
+    }
+
+    /**
+     * Get memory used by the pixels of given bitmap.
+     *
+     * @param bm Bitmap to measure
+     * @return Size in bytes
+     */
+    public static int getBitmapByteSize(Bitmap bm) {
+        if (bm == null) {
+            return 0;
+        }
+        if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+            return bm.getAllocationByteCount();
+        }
+        return bm.getRowBytes() * bm.getHeight();
+    }
+
+}
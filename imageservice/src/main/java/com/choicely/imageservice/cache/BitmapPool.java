@@ -0,0 +1,300 @@
+package com.choicely.imageservice.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of unused mutable bitmaps that can be handed to
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new pixels.
+ *
+ * Bitmaps are bucketed by config and byte size on KitKat and newer, where any large enough
+ * bitmap can be reused. On older versions only bitmaps of exactly the same size and config
+ * can be reused, so buckets are keyed with the dimensions.
+ *
+ * Bitmaps shared with caches and views are reference counted with {@link #acquire(Bitmap)} and
+ * {@link #release(Bitmap)}. Bitmap is put back to the pool when the last reference is released.
+ * Bitmaps handed to code that does not count references are detached with
+ * {@link #detach(Bitmap)} and never pooled until they are attached again.
+ */
+public class BitmapPool extends ChoicelyLogService {
+
+    /**
+     * Largest bitmap reused for a smaller one is this many times bigger than needed.
+     */
+    private static final int MAX_SIZE_MULTIPLIER = 4;
+
+    private final Map<String, NavigableMap<Integer, List<Bitmap>>> buckets = new HashMap<>();
+    private final LinkedHashSet<Bitmap> pooled = new LinkedHashSet<>();
+    private final Map<Bitmap, int[]> references = new WeakHashMap<>();
+    private final Map<Bitmap, Boolean> detached = new WeakHashMap<>();
+
+    private int maxBytes;
+    private int currentBytes = 0;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int putCount = 0;
+    private int evictionCount = 0;
+
+    public BitmapPool(int maxBytes) {
+        super("BitmapPool");
+        this.maxBytes = Math.max(0, maxBytes);
+        setDebug(false);
+    }
+
+    /**
+     * Create pool sized to 1/16 of the maximum heap size.
+     */
+    public static BitmapPool createDefault() {
+        long maxBytes = Runtime.getRuntime().maxMemory() / 16;
+        return new BitmapPool((int) Math.min(Integer.MAX_VALUE, maxBytes));
+    }
+
+    /**
+     * Get a bitmap that can be used as inBitmap for decoding image of given size. Pixel content
+     * of the returned bitmap is undefined.
+     *
+     * @param width  Width of the decoded image
+     * @param height Height of the decoded image
+     * @param config Config of the decoded image
+     * @return Reusable bitmap or null if none is available
+     */
+    public synchronized Bitmap get(int width, int height, Config config) {
+        if (width <= 0 || height <= 0 || config == null) {
+            return null;
+        }
+        NavigableMap<Integer, List<Bitmap>> bucket = buckets.get(getBucketKey(width, height, config));
+        Bitmap bm = null;
+        if (bucket != null) {
+            int size = getByteSize(width, height, config);
+            Map.Entry<Integer, List<Bitmap>> entry = bucket.ceilingEntry(size);
+            if (entry != null && entry.getKey() <= size * MAX_SIZE_MULTIPLIER) {
+                List<Bitmap> list = entry.getValue();
+                bm = list.remove(list.size() - 1);
+                if (list.isEmpty()) {
+                    bucket.remove(entry.getKey());
+                }
+                pooled.remove(bm);
+                currentBytes -= entry.getKey();
+            }
+        }
+        if (bm == null) {
+            missCount++;
+            d("miss[%d, %d]%s", width, height, config);
+        } else {
+            hitCount++;
+            d("hit[%d, %d]%s", width, height, config);
+        }
+        return bm;
+    }
+
+    /**
+     * Put bitmap to the pool. Bitmap must not be used anywhere after this. Bitmaps with acquired
+     * references are not pooled, they are pooled when the last reference is released.
+     *
+     * @param bm Bitmap no longer in use
+     * @return true if bitmap was pooled
+     */
+    public synchronized boolean put(Bitmap bm) {
+        if (bm == null || bm.isRecycled() || !bm.isMutable() || bm.getConfig() == null) {
+            return false;
+        }
+        if (references.containsKey(bm) || detached.containsKey(bm)) {
+            return false;
+        }
+        if (VERSION.SDK_INT < VERSION_CODES.HONEYCOMB || pooled.contains(bm)) {
+            return false;
+        }
+        int size = BitmapMemoryCache.getBitmapByteSize(bm);
+        if (size > maxBytes / 2) {
+            return false;
+        }
+        String key = getBucketKey(bm.getWidth(), bm.getHeight(), bm.getConfig());
+        NavigableMap<Integer, List<Bitmap>> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new TreeMap<>();
+            buckets.put(key, bucket);
+        }
+        List<Bitmap> list = bucket.get(size);
+        if (list == null) {
+            list = new ArrayList<>();
+            bucket.put(size, list);
+        }
+        list.add(bm);
+        pooled.add(bm);
+        currentBytes += size;
+        putCount++;
+
+        trimToSize(maxBytes);
+        return true;
+    }
+
+    /**
+     * Mark bitmap used by a cache or a view.
+     */
+    public synchronized void acquire(Bitmap bm) {
+        if (bm == null) {
+            return;
+        }
+        int[] count = references.get(bm);
+        if (count == null) {
+            count = new int[1];
+            references.put(bm, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Release one reference of a bitmap. When there are no references left the bitmap is
+     * put back to the pool. Bitmaps that were never acquired are ignored.
+     */
+    public synchronized void release(Bitmap bm) {
+        if (bm == null) {
+            return;
+        }
+        int[] count = references.get(bm);
+        if (count == null) {
+            return;
+        }
+        count[0]--;
+        if (count[0] <= 0) {
+            references.remove(bm);
+            put(bm);
+        }
+    }
+
+    /**
+     * Never pool the bitmap, because it was handed to code outside the service that may still
+     * draw it. References are still counted, but releasing the last one does not pool it.
+     */
+    public synchronized void detach(Bitmap bm) {
+        if (bm != null) {
+            detached.put(bm, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Let a detached bitmap be pooled again. It is pooled right away if it has no references.
+     */
+    public synchronized void attach(Bitmap bm) {
+        if (bm != null && detached.remove(bm) != null && !references.containsKey(bm)) {
+            put(bm);
+        }
+    }
+
+    /**
+     * Evict oldest bitmaps until pool is at most the given size.
+     *
+     * @param size Size in bytes
+     */
+    public synchronized void trimToSize(int size) {
+        Iterator<Bitmap> iterator = pooled.iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            Bitmap bm = iterator.next();
+            iterator.remove();
+            int bmSize = BitmapMemoryCache.getBitmapByteSize(bm);
+            NavigableMap<Integer, List<Bitmap>> bucket = buckets.get(getBucketKey(bm.getWidth(), bm.getHeight(), bm.getConfig()));
+            if (bucket != null) {
+                List<Bitmap> list = bucket.get(bmSize);
+                if (list != null) {
+                    list.remove(bm);
+                    if (list.isEmpty()) {
+                        bucket.remove(bmSize);
+                    }
+                }
+            }
+            currentBytes -= bmSize;
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxSize(int maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        trimToSize(this.maxBytes);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxBytes;
+    }
+
+    public synchronized int getCurrentSize() {
+        return currentBytes;
+    }
+
+    /**
+     * Number of times a pooled bitmap was reused for decoding.
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Number of times there was no pooled bitmap and a new one had to be allocated.
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getPutCount() {
+        return putCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Check can pooled bitmaps be used for decoding with given sample size.
+     */
+    public static boolean canReuseWithSampleSize(int sampleSize) {
+        if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+            return true;
+        }
+        return VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB && sampleSize <= 1;
+    }
+
+    public static int getByteSize(int width, int height, Config config) {
+        return width * height * getBytesPerPixel(config);
+    }
+
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.ALPHA_8) {
+            return 1;
+        } else if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private static String getBucketKey(int width, int height, Config config) {
+        if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+            return String.valueOf(config);
+        }
+        return width + "x" + height + ":" + config;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[hits=%d, misses=%d, puts=%d, evictions=%d, size=%d/%d]",
+                hitCount, missCount, putCount, evictionCount, currentBytes, maxBytes);
+    }
+
+}
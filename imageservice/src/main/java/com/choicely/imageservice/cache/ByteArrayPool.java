@@ -0,0 +1,138 @@
+package com.choicely.imageservice.cache;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of byte arrays used as file read buffers and decoder temporary storage, so reading an
+ * image does not allocate a new buffer of the file size every time.
+ *
+ * Arrays are bucketed by length. Requested lengths are rounded up so arrays of similar files
+ * can be shared. Oldest arrays are dropped when the pool is full.
+ */
+public class ByteArrayPool extends ChoicelyLogService {
+
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Array lengths are multiples of this.
+     */
+    private static final int LENGTH_STEP = 16 * 1024;
+
+    /**
+     * Largest array reused for a smaller one is this many times longer than needed.
+     */
+    private static final int MAX_SIZE_MULTIPLIER = 2;
+
+    private final TreeMap<Integer, List<byte[]>> buckets = new TreeMap<>();
+    private final LinkedHashSet<byte[]> pooled = new LinkedHashSet<>();
+
+    private int maxBytes;
+    private int currentBytes = 0;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+
+    public ByteArrayPool(int maxBytes) {
+        super("ByteArrayPool");
+        this.maxBytes = Math.max(0, maxBytes);
+        setDebug(false);
+    }
+
+    /**
+     * Get array of at least the given length. Content of the returned array is undefined.
+     */
+    public synchronized byte[] get(int length) {
+        int size = ((Math.max(1, length) + LENGTH_STEP - 1) / LENGTH_STEP) * LENGTH_STEP;
+        Map.Entry<Integer, List<byte[]>> entry = buckets.ceilingEntry(size);
+        if (entry != null && entry.getKey() <= size * MAX_SIZE_MULTIPLIER) {
+            List<byte[]> list = entry.getValue();
+            byte[] array = list.remove(list.size() - 1);
+            if (list.isEmpty()) {
+                buckets.remove(entry.getKey());
+            }
+            pooled.remove(array);
+            currentBytes -= array.length;
+            hitCount++;
+            return array;
+        }
+        missCount++;
+        d("miss[%d]", size);
+        return new byte[size];
+    }
+
+    /**
+     * Put array to the pool. Array must not be used anywhere after this.
+     */
+    public synchronized void put(byte[] array) {
+        if (array == null || array.length > maxBytes / 2 || pooled.contains(array)) {
+            return;
+        }
+        List<byte[]> list = buckets.get(array.length);
+        if (list == null) {
+            list = new ArrayList<>();
+            buckets.put(array.length, list);
+        }
+        list.add(array);
+        pooled.add(array);
+        currentBytes += array.length;
+
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Drop oldest arrays until pool is at most the given size.
+     *
+     * @param size Size in bytes
+     */
+    public synchronized void trimToSize(int size) {
+        Iterator<byte[]> iterator = pooled.iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            byte[] array = iterator.next();
+            iterator.remove();
+            List<byte[]> list = buckets.get(array.length);
+            if (list != null) {
+                list.remove(array);
+                if (list.isEmpty()) {
+                    buckets.remove(array.length);
+                }
+            }
+            currentBytes -= array.length;
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getCurrentSize() {
+        return currentBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ByteArrayPool[hits=%d, misses=%d, evictions=%d, size=%d/%d]",
+                hitCount, missCount, evictionCount, currentBytes, maxBytes);
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.choicely.imageservice.cache;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okhttp3.CacheControl;
+import okhttp3.Headers;
+import okhttp3.Response;
+
+/**
+ * HTTP caching information of a cached file: when it was received, how long it stays fresh
+ * and the validators used to revalidate it with a conditional request.
+ */
+public class CacheMetadata {
+
+    private static final String NONE = "-";
+
+    /**
+     * Shortest time a file is used before it is revalidated, even when the server says it is
+     * stale right away, so a no-cache image is not requested again on every bind.
+     */
+    public static final long MIN_REVALIDATE_INTERVAL = 60 * 1000;
+
+    /**
+     * Time a file without ETag and Last-Modified is used before it is downloaded again. Such a
+     * file can not be revalidated with a conditional request, only downloaded whole.
+     */
+    public static final long NO_VALIDATOR_REVALIDATE_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * Time the response was received in milliseconds.
+     */
+    public final long responseTime;
+    /**
+     * How long the response is fresh in milliseconds, or -1 if server did not tell.
+     */
+    public final long maxAge;
+    /**
+     * Last-Modified time in milliseconds, or -1 if unknown.
+     */
+    public final long lastModified;
+    @Nullable
+    public final String etag;
+
+    public CacheMetadata(long responseTime, long maxAge, long lastModified, @Nullable String etag) {
+        this.responseTime = responseTime;
+        this.maxAge = maxAge;
+        this.lastModified = lastModified;
+        this.etag = TextUtils.isEmpty(etag) ? null : etag;
+    }
+
+    /**
+     * Read caching information from response headers. Cache-Control max-age is preferred over
+     * Expires, no-cache and no-store make the response stale right away.
+     */
+    public static CacheMetadata fromResponse(Response response) {
+        Headers headers = response.headers();
+        long responseTime = response.receivedResponseAtMillis();
+        if (responseTime <= 0) {
+            responseTime = System.currentTimeMillis();
+        }
+
+        long maxAge = -1;
+        CacheControl cacheControl = response.cacheControl();
+        if (cacheControl.noCache() || cacheControl.noStore()) {
+            maxAge = 0;
+        } else if (cacheControl.maxAgeSeconds() >= 0) {
+            maxAge = cacheControl.maxAgeSeconds() * 1000L;
+        } else {
+            Date expires = headers.getDate("Expires");
+            if (expires != null) {
+                Date date = headers.getDate("Date");
+                long served = date != null ? date.getTime() : responseTime;
+                maxAge = Math.max(0, expires.getTime() - served);
+            }
+        }
+
+        Date lastModified = headers.getDate("Last-Modified");
+        return new CacheMetadata(responseTime, maxAge,
+                lastModified != null ? lastModified.getTime() : -1,
+                response.header("ETag"));
+    }
+
+    /**
+     * Combine information of a 304 Not Modified response with this one. Values not present in
+     * the 304 response are kept.
+     */
+    public CacheMetadata revalidated(Response notModified) {
+        CacheMetadata update = fromResponse(notModified);
+        return new CacheMetadata(update.responseTime,
+                update.maxAge >= 0 ? update.maxAge : maxAge,
+                update.lastModified > 0 ? update.lastModified : lastModified,
+                update.etag != null ? update.etag : etag);
+    }
+
+    /**
+     * Check is cached file fresh. Files without freshness information are always fresh.
+     */
+    public boolean isFresh(long now) {
+        return maxAge < 0 || now < responseTime + maxAge;
+    }
+
+    public boolean hasValidator() {
+        return etag != null || lastModified > 0;
+    }
+
+    /**
+     * Check should cached file be revalidated. Stale files are revalidated at most every
+     * {@link #MIN_REVALIDATE_INTERVAL}, or every {@link #NO_VALIDATOR_REVALIDATE_INTERVAL} if
+     * they have no validator.
+     */
+    public boolean needsRevalidation(long now) {
+        if (isFresh(now)) {
+            return false;
+        }
+        long interval = hasValidator() ? MIN_REVALIDATE_INTERVAL : NO_VALIDATOR_REVALIDATE_INTERVAL;
+        return now >= responseTime + interval || now < responseTime;
+    }
+
+    /**
+     * Last-Modified time formatted for If-Modified-Since header, or null if unknown.
+     */
+    @Nullable
+    public String getIfModifiedSince() {
+        if (lastModified <= 0) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(lastModified));
+    }
+
+    /**
+     * Serialize to a single journal line value. Spaces, control characters and percent signs of
+     * the ETag are percent encoded, so the values can be split by spaces.
+     */
+    String serialize() {
+        return responseTime + " " + maxAge + " " + lastModified + " " + (etag != null ? encode(etag) : NONE);
+    }
+
+    private static String encode(String value) {
+        if (NONE.equals(value)) {
+            return "%2D";
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' || c <= ' ' || c == 0x7f) {
+                sb.append(String.format(Locale.US, "%%%02X", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode value written by {@link #encode(String)}. Values without percent signs are
+     * returned as they are, as they were written before ETags were encoded.
+     */
+    @Nullable
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= value.length()) {
+                    return null;
+                }
+                try {
+                    sb.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse values written by {@link #serialize()}.
+     *
+     * @return CacheMetadata or null if values are invalid
+     */
+    @Nullable
+    static CacheMetadata parse(String[] values, int offset) {
+        if (values.length != offset + 4) {
+            return null;
+        }
+        try {
+            long responseTime = Long.parseLong(values[offset]);
+            long maxAge = Long.parseLong(values[offset + 1]);
+            long lastModified = Long.parseLong(values[offset + 2]);
+            String etag = NONE.equals(values[offset + 3]) ? null : decode(values[offset + 3]);
+            return new CacheMetadata(responseTime, maxAge, lastModified, etag);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,688 @@
+package com.choicely.imageservice.cache;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+import com.choicely.imageservice.utils.ChoicelyStaticUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size limited LRU cache of image files in a single directory. File names are used as keys.
+ *
+ * Access order is kept in an append-only journal:
+ * <pre>
+ *     choicely.DiskLruCache
+ *     1
+ *
+ *     CLEAN 1348574526 40392
+ *     META 1348574526 1528276440000 86400000 1528190040000 "5b1e2c3a-9dc8"
+ *     READ 1348574526
+ *     REMOVE -98234123
+ * </pre>
+ * META lines hold the HTTP caching information of an entry, see {@link CacheMetadata}.
+ * The journal is compacted when it grows too long. If the process dies while writing, a
+ * truncated journal is read as far as possible and the rest of the state is recovered from
+ * the files in the directory. Eviction happens in a background thread one file at a time.
+ *
+ * Entries can have variants, for example downscaled copies of the original image, stored
+ * with keys from {@link #getVariantKey(String, String)}. Variants are evicted before any
+ * original and are removed together with their original.
+ */
+public class DiskLruCache extends ChoicelyLogService {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    private static final String MAGIC = "choicely.DiskLruCache";
+    private static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String META = "META";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PARTIAL_MARKER = ".partial";
+    private static final String VARIANT_SEPARATOR = ".v";
+    private static final long STALE_PARTIAL_AGE = 7 * 24 * 60 * 60 * 1000L;
+    private static final String CHARSET = "US-ASCII";
+
+    private static final int REBUILD_OPERATION_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTemp;
+    private final File journalFileBackup;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private Writer journalWriter;
+    private long maxSize;
+    private long size = 0;
+    private int redundantOperationCount = 0;
+    private boolean journalError = false;
+    private int evictionCount = 0;
+
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimToSize();
+            synchronized (DiskLruCache.this) {
+                if (journalWriter != null && isJournalRebuildRequired()) {
+                    rebuildJournal();
+                }
+            }
+        }
+    };
+
+    private static class Entry {
+
+        private final String key;
+        private long size;
+        private CacheMetadata metadata;
+
+        private Entry(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+
+    }
+
+    private DiskLruCache(File directory, long maxSize) {
+        super("DiskLruCache");
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTemp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        setDebug(false);
+    }
+
+    /**
+     * Open cache in given directory, reading the journal and files already in the directory.
+     * This does file system operations and should not be called in UI thread.
+     *
+     * @param directory Directory of the cached files
+     * @param maxSize   Maximum size of the cache in bytes
+     * @return DiskLruCache
+     */
+    public static DiskLruCache open(File directory, long maxSize) {
+        DiskLruCache cache = new DiskLruCache(directory, maxSize);
+        cache.init();
+        return cache;
+    }
+
+    /**
+     * Get key of a variant of the given entry.
+     *
+     * @param key     Key of the original entry
+     * @param variant Name of the variant, must not contain white space
+     * @return Key of the variant
+     */
+    public static String getVariantKey(String key, String variant) {
+        return key + VARIANT_SEPARATOR + variant;
+    }
+
+    public static boolean isVariantKey(String key) {
+        return key.contains(VARIANT_SEPARATOR);
+    }
+
+    /**
+     * Check is file name reserved for the cache itself.
+     */
+    public static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TEMP.equals(name) || JOURNAL_FILE_BACKUP.equals(name);
+    }
+
+    private synchronized void init() {
+        if (directory.mkdirs()) {
+            d("[%s] created", directory.getAbsolutePath());
+        }
+        if (journalFileBackup.exists()) {
+            // process died while the journal was rebuilt
+            if (journalFile.exists()) {
+                delete(journalFileBackup);
+            } else if (!journalFileBackup.renameTo(journalFile)) {
+                w("Could not restore journal backup");
+            }
+        }
+
+        boolean journalValid = false;
+        if (journalFile.exists()) {
+            try {
+                journalValid = readJournal();
+            } catch (IOException e) {
+                w(e, "Journal[%s] could not be read", journalFile.getAbsolutePath());
+            }
+        }
+        if (reconcileWithDirectory()) {
+            journalValid = false;
+        }
+        if (journalValid) {
+            try {
+                journalWriter = createWriter(journalFile, true);
+            } catch (IOException e) {
+                w(e, "Journal could not be opened");
+                journalValid = false;
+            }
+        }
+        if (!journalValid) {
+            rebuildJournal();
+        }
+        i("Opened[%s] entries[%d] size[%d/%d]", directory.getAbsolutePath(), entries.size(), size, maxSize);
+        scheduleCleanupIfNeeded();
+    }
+
+    /**
+     * @return true if journal was read to the end without problems
+     */
+    private boolean readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), CHARSET));
+        int lineCount = 0;
+        boolean valid = false;
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                w("Unexpected journal header[%s, %s]", magic, version);
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line)) {
+                    // most likely a line truncated by a crash, state is recovered from the directory
+                    w("Journal line corrupted[%s]", line);
+                    return false;
+                }
+                lineCount++;
+            }
+            valid = true;
+        } finally {
+            ChoicelyStaticUtils.close(reader);
+            redundantOperationCount = lineCount - entries.size();
+        }
+        return valid;
+    }
+
+    private boolean readJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return false;
+        }
+        String op = parts[0];
+        String key = parts[1];
+        if (CLEAN.equals(op) && parts.length == 3) {
+            long entrySize;
+            try {
+                entrySize = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                size -= entry.size;
+                entry.size = entrySize;
+            } else {
+                entry = new Entry(key, entrySize);
+                entries.put(key, entry);
+            }
+            size += entrySize;
+            return true;
+        } else if (META.equals(op)) {
+            Entry entry = entries.get(key);
+            CacheMetadata metadata = CacheMetadata.parse(parts, 2);
+            if (metadata == null) {
+                return false;
+            }
+            if (entry != null) {
+                entry.metadata = metadata;
+            }
+            return true;
+        } else if (READ.equals(op) && parts.length == 2) {
+            entries.get(key);
+            return true;
+        } else if (REMOVE.equals(op) && parts.length == 2) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.size;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop entries whose files are missing and add files the journal does not know about.
+     * Unknown files are treated as least recently used.
+     *
+     * @return true if entries changed
+     */
+    private boolean reconcileWithDirectory() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Map<String, File> fileMap = new LinkedHashMap<>();
+        long staleTime = System.currentTimeMillis() - STALE_PARTIAL_AGE;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile()) {
+                continue;
+            }
+            if (isEntryFileName(name)) {
+                fileMap.put(name, file);
+            } else if (name.contains(PARTIAL_MARKER) && file.lastModified() < staleTime) {
+                // interrupted download that was never resumed
+                delete(file);
+            }
+        }
+
+        boolean changed = false;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (fileMap.remove(entry.key) == null) {
+                iterator.remove();
+                size -= entry.size;
+                changed = true;
+            }
+        }
+        if (!fileMap.isEmpty()) {
+            List<File> unknown = new ArrayList<>(fileMap.values());
+            Collections.sort(unknown, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified();
+                    long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            List<Entry> known = new ArrayList<>(entries.values());
+            entries.clear();
+            size = 0;
+            for (File file : unknown) {
+                Entry entry = new Entry(file.getName(), file.length());
+                entries.put(entry.key, entry);
+                size += entry.size;
+            }
+            for (Entry entry : known) {
+                entries.put(entry.key, entry);
+                size += entry.size;
+            }
+            d("Found %d files missing from journal", unknown.size());
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Check is file a complete cache entry. Journal files, temporary files and partial
+     * downloads are not.
+     */
+    static boolean isEntryFileName(String name) {
+        return !isJournalFile(name) && !name.endsWith(TEMP_SUFFIX) && !name.contains(PARTIAL_MARKER);
+    }
+
+    private synchronized void rebuildJournal() {
+        ChoicelyStaticUtils.close(journalWriter);
+        journalWriter = null;
+        Writer writer = null;
+        try {
+            writer = createWriter(journalFileTemp, false);
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n\n");
+            for (Entry entry : entries.values()) {
+                writer.write(CLEAN + ' ' + entry.key + ' ' + entry.size + '\n');
+                if (entry.metadata != null) {
+                    writer.write(getMetaLine(entry.key, entry.metadata) + '\n');
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            w(e, "Problem writing journal");
+        } finally {
+            ChoicelyStaticUtils.close(writer);
+        }
+
+        if (journalFile.exists()) {
+            delete(journalFileBackup);
+            if (!journalFile.renameTo(journalFileBackup)) {
+                w("Could not backup journal");
+            }
+        }
+        if (!journalFileTemp.renameTo(journalFile)) {
+            w("Could not replace journal");
+        }
+        delete(journalFileBackup);
+
+        try {
+            journalWriter = createWriter(journalFile, true);
+        } catch (IOException e) {
+            w(e, "Journal could not be opened");
+        }
+        redundantOperationCount = 0;
+        journalError = false;
+    }
+
+    private static Writer createWriter(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), CHARSET));
+    }
+
+    private void writeJournalLine(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            w(e, "Problem writing journal");
+            journalError = true;
+        }
+    }
+
+    private static String getMetaLine(String key, CacheMetadata metadata) {
+        return META + ' ' + key + ' ' + metadata.serialize();
+    }
+
+    private boolean isJournalRebuildRequired() {
+        return journalError
+                || (redundantOperationCount >= REBUILD_OPERATION_THRESHOLD
+                && redundantOperationCount >= entries.size());
+    }
+
+    private synchronized void scheduleCleanupIfNeeded() {
+        if (journalWriter == null) {
+            return;
+        }
+        if (size > maxSize || isJournalRebuildRequired()) {
+            executor.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * Evict least recently used files until cache fits to its maximum size. The lock is released
+     * between evictions, so readers are not blocked for the whole trim.
+     */
+    private void trimToSize() {
+        while (true) {
+            synchronized (this) {
+                if (journalWriter == null || size <= maxSize || entries.isEmpty()) {
+                    return;
+                }
+                String eldest = getEldestEvictable();
+                d("Evict[%s]", eldest);
+                removeEntry(eldest);
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Least recently used variant, or least recently used entry if there are no variants.
+     */
+    private String getEldestEvictable() {
+        String eldest = null;
+        for (String key : entries.keySet()) {
+            if (eldest == null) {
+                eldest = key;
+            }
+            if (isVariantKey(key)) {
+                return key;
+            }
+        }
+        return eldest;
+    }
+
+    /**
+     * Add or update file that has been fully written to the cache directory.
+     *
+     * @param key  Name of the file in cache directory
+     * @param file Cached file
+     */
+    public void commit(String key, File file) {
+        commit(key, file, null);
+    }
+
+    /**
+     * Add or update file that has been fully written to the cache directory. Replacing an
+     * original entry removes its variants, they were made of the old content.
+     *
+     * @param key      Name of the file in cache directory
+     * @param file     Cached file
+     * @param metadata HTTP caching information of the file, or null if there is none
+     */
+    public synchronized void commit(String key, File file, CacheMetadata metadata) {
+        if (key == null || file == null) {
+            return;
+        }
+        long fileSize = file.length();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            size -= entry.size;
+            entry.size = fileSize;
+            redundantOperationCount++;
+            if (!isVariantKey(key)) {
+                removeVariants(key);
+            }
+        } else {
+            entry = new Entry(key, fileSize);
+            entries.put(key, entry);
+        }
+        if (entry.metadata != null) {
+            redundantOperationCount++;
+        }
+        entry.metadata = metadata;
+        size += fileSize;
+        writeJournalLine(CLEAN + ' ' + key + ' ' + fileSize, metadata == null);
+        if (metadata != null) {
+            writeJournalLine(getMetaLine(key, metadata), true);
+        }
+        scheduleCleanupIfNeeded();
+    }
+
+    /**
+     * Replace HTTP caching information of an entry, for example after a successful revalidation.
+     *
+     * @return true if cache has the entry
+     */
+    public synchronized boolean updateMetadata(String key, CacheMetadata metadata) {
+        Entry entry = key != null ? entries.get(key) : null;
+        if (entry == null || metadata == null) {
+            return false;
+        }
+        if (entry.metadata != null) {
+            redundantOperationCount++;
+        }
+        entry.metadata = metadata;
+        writeJournalLine(getMetaLine(key, metadata), true);
+        if (isJournalRebuildRequired()) {
+            scheduleCleanupIfNeeded();
+        }
+        return true;
+    }
+
+    /**
+     * Get HTTP caching information of an entry without touching the file system. Entry is
+     * moved to the recently used end, but the access is not written to the journal.
+     *
+     * @return CacheMetadata or null if entry is not cached or has no caching information
+     */
+    public synchronized CacheMetadata getMetadata(String key) {
+        Entry entry = key != null ? entries.get(key) : null;
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * Mark entry as recently used.
+     *
+     * @param key Name of the file in cache directory
+     * @return true if cache has the entry
+     */
+    public synchronized boolean recordAccess(String key) {
+        if (key == null || entries.get(key) == null) {
+            return false;
+        }
+        // access order is only a hint, no need to flush it to disk right away
+        writeJournalLine(READ + ' ' + key, false);
+        redundantOperationCount++;
+        if (isJournalRebuildRequired()) {
+            scheduleCleanupIfNeeded();
+        }
+        return true;
+    }
+
+    /**
+     * Check is file in the cache without touching the file system.
+     */
+    public synchronized boolean contains(String key) {
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * Remove entry and delete its file.
+     *
+     * @param key Name of the file in cache directory
+     * @return true if entry was removed
+     */
+    public synchronized boolean remove(String key) {
+        if (key == null || !entries.containsKey(key)) {
+            return false;
+        }
+        removeEntry(key);
+        scheduleCleanupIfNeeded();
+        return true;
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        File file = new File(directory, key);
+        if (file.exists() && !file.delete()) {
+            w("Could not delete[%s]", file.getAbsolutePath());
+        }
+        size -= entry.size;
+        redundantOperationCount += 2;
+        writeJournalLine(REMOVE + ' ' + key, true);
+
+        if (!isVariantKey(key)) {
+            removeVariants(key);
+        }
+    }
+
+    private void removeVariants(String key) {
+        String variantPrefix = key + VARIANT_SEPARATOR;
+        for (String variantKey : new ArrayList<>(entries.keySet())) {
+            if (variantKey.startsWith(variantPrefix)) {
+                removeEntry(variantKey);
+            }
+        }
+    }
+
+    /**
+     * Remove all entries whose files were last modified before the given time.
+     *
+     * @param timeModified Time in milliseconds
+     */
+    public void removeOlderThan(long timeModified) {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(entries.keySet());
+        }
+        for (String key : keys) {
+            if (new File(directory, key).lastModified() < timeModified) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Delete all cached files.
+     */
+    public synchronized void clear() {
+        for (String key : new ArrayList<>(entries.keySet())) {
+            File file = new File(directory, key);
+            if (file.exists() && !file.delete()) {
+                w("Could not delete[%s]", file.getAbsolutePath());
+            }
+        }
+        entries.clear();
+        size = 0;
+        rebuildJournal();
+    }
+
+    /**
+     * Close the journal. Cache can not be modified after this.
+     */
+    public synchronized void close() {
+        ChoicelyStaticUtils.close(journalWriter);
+        journalWriter = null;
+        executor.shutdown();
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        scheduleCleanupIfNeeded();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Size of all cached files in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            w("Could not delete[%s]", file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskLruCache[entries=%d, size=%d/%d, evictions=%d]",
+                entries.size(), size, maxSize, evictionCount);
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.choicely.imageservice.cache;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.choicely.imageservice.log.ChoicelyLogService;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of urls whose download failed recently. While a url is cached it is not
+ * downloaded again, so a broken url in a list does not open a new connection on every bind.
+ *
+ * Entries expire after a time to live chosen by the status of the failure. Missing resources
+ * are remembered longer than server and network errors, which are likely to pass soon. Status
+ * with zero time to live is not cached.
+ */
+public class NegativeCache extends ChoicelyLogService {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_GONE = 410;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Long> statusTtls = new HashMap<>();
+
+    private int maxEntries;
+    private long networkErrorTtl = 30 * 1000;
+    private long clientErrorTtl = 5 * 60 * 1000;
+    private long serverErrorTtl = 60 * 1000;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int putCount = 0;
+    private int evictionCount = 0;
+
+    public NegativeCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public NegativeCache(int maxEntries) {
+        super("NegativeCache");
+        this.maxEntries = Math.max(1, maxEntries);
+        statusTtls.put(HTTP_NOT_FOUND, 10 * 60 * 1000L);
+        statusTtls.put(HTTP_GONE, 10 * 60 * 1000L);
+        setDebug(false);
+    }
+
+    /**
+     * Remember failed download of the url.
+     *
+     * @param url        Url of the download
+     * @param statusCode Status of the failure, or -1 if there was no response
+     */
+    public synchronized void put(String url, int statusCode) {
+        if (url == null) {
+            return;
+        }
+        long ttl = getTtl(statusCode);
+        if (ttl <= 0) {
+            return;
+        }
+        entries.put(url, new Entry(statusCode, now() + ttl));
+        putCount++;
+        d("put[%s] status[%d] ttl[%d]", url, statusCode, ttl);
+        trimToSize(maxEntries);
+    }
+
+    /**
+     * Get status of a recent failure of the url.
+     *
+     * @return Status of the failure, or null if url has not failed within its time to live
+     */
+    @Nullable
+    public synchronized Integer get(String url) {
+        Entry entry = url != null ? entries.get(url) : null;
+        if (entry != null && entry.expires <= now()) {
+            entries.remove(url);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        d("hit[%s] status[%d]", url, entry.statusCode);
+        return entry.statusCode;
+    }
+
+    public synchronized void remove(String url) {
+        if (url != null) {
+            entries.remove(url);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Set time to live of failures with the status, overriding the time to live of its class.
+     *
+     * @param statusCode Status of the failure
+     * @param ttl        Time in milliseconds, zero to not cache the status
+     */
+    public synchronized NegativeCache setTtl(int statusCode, long ttl) {
+        statusTtls.put(statusCode, Math.max(0, ttl));
+        return this;
+    }
+
+    /**
+     * Time to live of failures without a response, like DNS errors and timeouts.
+     */
+    public synchronized NegativeCache setNetworkErrorTtl(long ttl) {
+        networkErrorTtl = Math.max(0, ttl);
+        return this;
+    }
+
+    /**
+     * Time to live of 4xx failures.
+     */
+    public synchronized NegativeCache setClientErrorTtl(long ttl) {
+        clientErrorTtl = Math.max(0, ttl);
+        return this;
+    }
+
+    /**
+     * Time to live of 5xx failures.
+     */
+    public synchronized NegativeCache setServerErrorTtl(long ttl) {
+        serverErrorTtl = Math.max(0, ttl);
+        return this;
+    }
+
+    public synchronized long getTtl(int statusCode) {
+        Long ttl = statusTtls.get(statusCode);
+        if (ttl != null) {
+            return ttl;
+        }
+        if (statusCode < 0) {
+            return networkErrorTtl;
+        } else if (statusCode >= 400 && statusCode < 500) {
+            return clientErrorTtl;
+        } else if (statusCode >= 500) {
+            return serverErrorTtl;
+        }
+        return 0;
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        trimToSize(this.maxEntries);
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of times a url was found failed and not downloaded.
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getPutCount() {
+        return putCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Clock of the expiry times, milliseconds since boot.
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void trimToSize(int size) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > size && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("NegativeCache[hits=%d, misses=%d, puts=%d, evictions=%d, size=%d/%d]",
+                hitCount, missCount, putCount, evictionCount, entries.size(), maxEntries);
+    }
+
+    private static class Entry {
+
+        final int statusCode;
+        final long expires;
+
+        Entry(int statusCode, long expires) {
+            this.statusCode = statusCode;
+            this.expires = expires;
+        }
+
+    }
+
+}
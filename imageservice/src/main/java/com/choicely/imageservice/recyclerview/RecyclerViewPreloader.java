@@ -0,0 +1,169 @@
+package com.choicely.imageservice.recyclerview;
+
+import android.support.annotation.NonNull;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+
+import com.choicely.imageservice.ChoicelyImageService;
+import com.choicely.imageservice.ImageChooser;
+import com.choicely.imageservice.PrefetchBatch;
+
+import java.util.List;
+
+/**
+ * Decodes images of the list items about to scroll into view to the memory cache, so rows
+ * show their image right away instead of a placeholder.
+ *
+ * Preload range follows the scroll direction and grows with scroll speed, from
+ * {@link #getMinPreload()} up to {@link #getMaxPreload()} items ahead of the visible ones.
+ * Preloads that fall out of the range are cancelled. Works with {@link LinearLayoutManager}
+ * and its subclasses.
+ *
+ * <pre>
+ *     recyclerView.addOnScrollListener(new RecyclerViewPreloader(service, provider, 10));
+ * </pre>
+ *
+ * NOTE: RecyclerView is not a dependency of the library, the application must include it to
+ * use this class.
+ */
+public class RecyclerViewPreloader extends RecyclerView.OnScrollListener {
+
+    /**
+     * Scroll distance is extrapolated this many frames ahead, roughly half a second.
+     */
+    private static final int LOOKAHEAD_FRAMES = 30;
+
+    /**
+     * Provides images of list items.
+     */
+    public interface PreloadProvider {
+
+        /**
+         * Get images of the item in given adapter position. Images must be requested with the
+         * same parameters as when they are set to the views, so preloaded bitmaps are found
+         * from memory cache.
+         *
+         * @param position Adapter position
+         * @return ImageInformation of the images, can be empty
+         */
+        @NonNull
+        List<ImageChooser> getPreloadImages(int position);
+
+    }
+
+    private final ChoicelyImageService service;
+    private final PreloadProvider provider;
+    private final int minPreload;
+    private final int maxPreload;
+    private final SparseArray<PrefetchBatch> preloading = new SparseArray<>();
+    private boolean forward = true;
+
+    /**
+     * @param maxPreload Maximum number of items preloaded ahead of the visible items
+     */
+    public RecyclerViewPreloader(ChoicelyImageService service, PreloadProvider provider, int maxPreload) {
+        this(service, provider, Math.min(2, maxPreload), maxPreload);
+    }
+
+    /**
+     * @param minPreload Number of items preloaded when list is not scrolling
+     * @param maxPreload Maximum number of items preloaded ahead of the visible items
+     */
+    public RecyclerViewPreloader(ChoicelyImageService service, PreloadProvider provider, int minPreload, int maxPreload) {
+        this.service = service;
+        this.provider = provider;
+        this.maxPreload = Math.max(0, maxPreload);
+        this.minPreload = Math.max(0, Math.min(minPreload, this.maxPreload));
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+        if (!(layoutManager instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+        int first = linearLayoutManager.findFirstVisibleItemPosition();
+        int last = linearLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return;
+        }
+        boolean vertical = linearLayoutManager.getOrientation() == LinearLayoutManager.VERTICAL;
+        int delta = vertical ? dy : dx;
+        if (delta != 0) {
+            forward = delta > 0;
+        }
+        int viewportSize = vertical ? recyclerView.getHeight() : recyclerView.getWidth();
+        int count = getPreloadCount(Math.abs(delta), viewportSize, last - first + 1);
+
+        int start;
+        int end;
+        if (forward) {
+            start = last + 1;
+            end = Math.min(linearLayoutManager.getItemCount() - 1, last + count);
+        } else {
+            start = Math.max(0, first - count);
+            end = first - 1;
+        }
+        preload(start, end, first, last);
+    }
+
+    /**
+     * Number of items to preload at given scroll speed.
+     *
+     * @param distance     Scrolled distance since last scroll event in pixels
+     * @param viewportSize Size of the list in scroll direction
+     * @param visibleCount Number of visible items
+     */
+    private int getPreloadCount(int distance, int viewportSize, int visibleCount) {
+        if (viewportSize <= 0 || visibleCount <= 0) {
+            return minPreload;
+        }
+        float itemsPerFrame = distance * visibleCount / (float) viewportSize;
+        int count = (int) Math.ceil(itemsPerFrame * LOOKAHEAD_FRAMES);
+        return Math.max(minPreload, Math.min(maxPreload, count));
+    }
+
+    private void preload(int start, int end, int firstVisible, int lastVisible) {
+        for (int i = preloading.size() - 1; i >= 0; i--) {
+            int position = preloading.keyAt(i);
+            if (position >= start && position <= end) {
+                continue;
+            }
+            if (position < firstVisible || position > lastVisible) {
+                // scrolled out of range, visible items keep loading for their views
+                preloading.valueAt(i).cancel();
+            }
+            preloading.removeAt(i);
+        }
+        for (int position = start; position <= end; position++) {
+            if (preloading.get(position) != null) {
+                continue;
+            }
+            List<ImageChooser> images = provider.getPreloadImages(position);
+            if (!images.isEmpty()) {
+                preloading.put(position, service.prefetch(images, true, null));
+            }
+        }
+    }
+
+    /**
+     * Cancel all preloading, for example when the list is destroyed.
+     */
+    public void clear() {
+        for (int i = 0; i < preloading.size(); i++) {
+            preloading.valueAt(i).cancel();
+        }
+        preloading.clear();
+    }
+
+    public int getMinPreload() {
+        return minPreload;
+    }
+
+    public int getMaxPreload() {
+        return maxPreload;
+    }
+
+}
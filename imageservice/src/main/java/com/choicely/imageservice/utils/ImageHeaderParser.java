@@ -0,0 +1,265 @@
+package com.choicely.imageservice.utils;
+
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads size and EXIF orientation of JPEG and PNG images from the first bytes of the file, so
+ * the decoder does not need a separate bounds decode and EXIF read of the same file.
+ *
+ * Parser stops at the frame header of a JPEG and at the IHDR chunk of a PNG. Other formats,
+ * and files it does not understand, are left to the decoder.
+ */
+public class ImageHeaderParser {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+
+    /**
+     * Bytes the parser may read before giving up, enough for the EXIF segment and other
+     * metadata before the frame header.
+     */
+    public static final int MAX_HEADER_BYTES = 128 * 1024;
+
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] EXIF_PREAMBLE = {'E', 'x', 'i', 'f', 0, 0};
+
+    public final String mimeType;
+    public final int width;
+    public final int height;
+    public final int rotation; // clockwise rotation in degrees from EXIF orientation
+
+    private ImageHeaderParser(String mimeType, int width, int height, int rotation) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+    }
+
+    /**
+     * Parse header of the image. Stream is read past the header, callers that decode from the
+     * same stream mark it before parsing and reset after.
+     *
+     * @return Header or null if format is not JPEG or PNG, or the header could not be parsed
+     */
+    @Nullable
+    public static ImageHeaderParser parse(InputStream input) {
+        try {
+            int first = input.read();
+            int second = input.read();
+            if (first == 0xff && second == 0xd8) {
+                return parseJpeg(new Reader(input));
+            } else if (first == (PNG_SIGNATURE[0] & 0xff) && second == PNG_SIGNATURE[1]) {
+                return parsePng(new Reader(input));
+            }
+        } catch (IOException e) {
+            // truncated or too long header, left to the decoder
+        }
+        return null;
+    }
+
+    @Nullable
+    private static ImageHeaderParser parsePng(Reader reader) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (reader.readByte() != (PNG_SIGNATURE[i] & 0xff)) {
+                return null;
+            }
+        }
+        reader.readInt(); // IHDR length
+        if (reader.readInt() != 0x49484452) { // "IHDR"
+            return null;
+        }
+        int width = reader.readInt();
+        int height = reader.readInt();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageHeaderParser(MIME_PNG, width, height, 0);
+    }
+
+    @Nullable
+    private static ImageHeaderParser parseJpeg(Reader reader) throws IOException {
+        int rotation = 0;
+        while (true) {
+            if (reader.readByte() != 0xff) {
+                return null;
+            }
+            int marker = reader.readByte();
+            while (marker == 0xff) {
+                // fill bytes
+                marker = reader.readByte();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // no payload
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // end of image or start of scan before a frame header
+                return null;
+            }
+            int length = reader.readShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker == 0xe1 && length >= EXIF_PREAMBLE.length) {
+                byte[] segment = reader.readBytes(length);
+                rotation = getExifRotation(segment);
+            } else if (isFrameHeader(marker)) {
+                reader.readByte(); // precision
+                int height = reader.readShort();
+                int width = reader.readShort();
+                if (width <= 0 || height <= 0) {
+                    return null;
+                }
+                return new ImageHeaderParser(MIME_JPEG, width, height, rotation);
+            } else {
+                reader.skip(length);
+            }
+        }
+    }
+
+    /**
+     * SOF markers, excluding DHT (C4), JPG (C8) and DAC (CC) that share the range.
+     */
+    private static boolean isFrameHeader(int marker) {
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    /**
+     * Read orientation from APP1 segment and convert it to rotation. Mirrored orientations are
+     * not rotated.
+     */
+    private static int getExifRotation(byte[] segment) {
+        for (int i = 0; i < EXIF_PREAMBLE.length; i++) {
+            if (segment[i] != EXIF_PREAMBLE[i]) {
+                return 0;
+            }
+        }
+        int tiff = EXIF_PREAMBLE.length;
+        if (segment.length < tiff + 8) {
+            return 0;
+        }
+        boolean littleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+        int ifd = tiff + getInt(segment, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > segment.length) {
+            return 0;
+        }
+        int entries = getShort(segment, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return 0;
+            }
+            if (getShort(segment, entry, littleEndian) == EXIF_ORIENTATION_TAG) {
+                switch (getShort(segment, entry + 8, littleEndian)) {
+                    case ORIENTATION_ROTATE_90:
+                        return 90;
+                    case ORIENTATION_ROTATE_180:
+                        return 180;
+                    case ORIENTATION_ROTATE_270:
+                        return 270;
+                    default:
+                        return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int getShort(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+        }
+        return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+
+    private static int getInt(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return getShort(data, offset, true) | getShort(data, offset + 2, true) << 16;
+        }
+        return getShort(data, offset, false) << 16 | getShort(data, offset + 2, false);
+    }
+
+    /**
+     * Big endian reader that fails when the header gets longer than {@link #MAX_HEADER_BYTES}.
+     */
+    private static class Reader {
+
+        private final InputStream input;
+        private int position = 2; // signature start has been read
+
+        Reader(InputStream input) {
+            this.input = input;
+        }
+
+        private void consume(int count) throws IOException {
+            position += count;
+            if (position > MAX_HEADER_BYTES) {
+                throw new IOException("Header too long");
+            }
+        }
+
+        int readByte() throws IOException {
+            consume(1);
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        int readShort() throws IOException {
+            return readByte() << 8 | readByte();
+        }
+
+        int readInt() throws IOException {
+            return readShort() << 16 | readShort();
+        }
+
+        byte[] readBytes(int count) throws IOException {
+            consume(count);
+            byte[] data = new byte[count];
+            int offset = 0;
+            while (offset < count) {
+                int read = input.read(data, offset, count - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            return data;
+        }
+
+        void skip(int count) throws IOException {
+            consume(count);
+            long remaining = count;
+            while (remaining > 0) {
+                long skipped = input.skip(remaining);
+                if (skipped <= 0) {
+                    if (input.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+    }
+
+}
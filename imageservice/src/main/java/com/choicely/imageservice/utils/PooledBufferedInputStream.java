@@ -0,0 +1,167 @@
+package com.choicely.imageservice.utils;
+
+import com.choicely.imageservice.cache.ByteArrayPool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered input stream with a buffer taken from a {@link ByteArrayPool}. Supports mark and
+ * reset, the buffer grows up to the mark limit, so a header can be parsed and the same stream
+ * reset for the decoder. Buffer is returned to the pool when the stream is closed.
+ */
+public class PooledBufferedInputStream extends FilterInputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteArrayPool pool;
+    private byte[] buf;
+    private int count = 0; // bytes in the buffer
+    private int pos = 0; // next byte to read
+    private int markPos = -1;
+    private int markLimit = 0;
+
+    public PooledBufferedInputStream(InputStream in, ByteArrayPool pool) {
+        super(in);
+        this.pool = pool;
+        this.buf = pool.get(DEFAULT_BUFFER_SIZE);
+    }
+
+    private byte[] getBuffer() throws IOException {
+        byte[] b = buf;
+        if (b == null) {
+            throw new IOException("Stream closed");
+        }
+        return b;
+    }
+
+    /**
+     * Read more bytes to the buffer, keeping the marked bytes.
+     */
+    private int fill() throws IOException {
+        byte[] b = getBuffer();
+        if (markPos < 0 || pos - markPos >= markLimit) {
+            // nothing to keep
+            markPos = -1;
+            pos = 0;
+            count = 0;
+        } else if (pos >= b.length) {
+            if (markPos > 0) {
+                int kept = count - markPos;
+                System.arraycopy(b, markPos, b, 0, kept);
+                pos = kept;
+                count = kept;
+                markPos = 0;
+            } else {
+                // marked bytes fill the whole buffer, grow it within the mark limit
+                byte[] larger = pool.get(Math.min(markLimit, b.length * 2));
+                System.arraycopy(b, 0, larger, 0, count);
+                pool.put(b);
+                buf = larger;
+                b = larger;
+            }
+        }
+        if (pos >= b.length) {
+            // buffer is as large as the mark limit allows, mark is lost
+            markPos = -1;
+            pos = 0;
+            count = 0;
+        }
+        int read = in.read(b, pos, b.length - pos);
+        if (read > 0) {
+            count = pos + read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (pos >= count && fill() <= 0) {
+            return -1;
+        }
+        return getBuffer()[pos++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int available = count - pos;
+        if (available <= 0) {
+            if (markPos < 0 && len >= getBuffer().length) {
+                // large read without a mark, no need to copy through the buffer
+                return in.read(b, off, len);
+            }
+            if (fill() <= 0) {
+                return -1;
+            }
+            available = count - pos;
+        }
+        int read = Math.min(available, len);
+        System.arraycopy(getBuffer(), pos, b, off, read);
+        pos += read;
+        return read;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long available = count - pos;
+        if (available <= 0) {
+            if (markPos < 0) {
+                return in.skip(n);
+            }
+            if (fill() <= 0) {
+                return 0;
+            }
+            available = count - pos;
+        }
+        long skipped = Math.min(available, n);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        getBuffer();
+        return (count - pos) + in.available();
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markLimit = readLimit;
+        markPos = pos;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        getBuffer();
+        if (markPos < 0) {
+            throw new IOException("Mark has been invalidated");
+        }
+        pos = markPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] b;
+        synchronized (this) {
+            b = buf;
+            buf = null;
+        }
+        if (b != null) {
+            pool.put(b);
+        }
+        in.close();
+    }
+
+}
@@ -1,23 +1,47 @@
 package com.choicely.imageservice.web;
 
+import android.text.TextUtils;
+
 import com.choicely.imageservice.utils.ChoicelyStaticUtils;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import okhttp3.HttpUrl;
+import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 /**
+ * Writes response body to a file. Body is first written to a partial file next to the target
+ * file and renamed to the target only when it is complete, so an existing target file is
+ * always a whole image.
+ *
+ * If download is interrupted and the server supports byte ranges, the partial file is kept
+ * with the validator of the response, and the next request can continue from where the
+ * previous one stopped, see {@link #addResumeHeaders(Request.Builder, File)}.
+ *
  * Created by Tommy on 3/5/2015.
  */
 public class OkFileProgressHandler extends OkResponseHandler<File> {
 
+    /**
+     * Suffix of incomplete download files.
+     */
+    public static final String PARTIAL_SUFFIX = ".partial";
+    private static final String VALIDATOR_SUFFIX = PARTIAL_SUFFIX + ".validator";
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
     private File file;
 
     public OkFileProgressHandler(File file) {
@@ -26,37 +50,200 @@ public class OkFileProgressHandler extends OkResponseHandler<File> {
         setDebug(false);
     }
 
+    /**
+     * Write response body to the file.
+     *
+     * @return The file or null if body could not be written completely
+     */
     public File handleResponse(Response response) {
+        File partialFile = getPartialFile(file);
+        File validatorFile = getValidatorFile(file);
         InputStream is = null;
         BufferedInputStream input = null;
         OutputStream output = null;
+        boolean complete = false;
+        boolean resumable = false;
         try {
             HttpUrl url = response.request().url();
             ResponseBody body = response.body();
+            long offset = getResumeOffset(response, partialFile);
+            if (offset < 0) {
+                throw new IOException("Partial response does not continue the partial file");
+            } else if (offset == 0) {
+                resumable = writeValidator(response, validatorFile);
+            } else {
+                resumable = true;
+                d("[%s]Resuming from[%d]", url, offset);
+            }
             is = body.byteStream();
             input = new BufferedInputStream(is);
-            output = new FileOutputStream(file);
+            output = new FileOutputStream(partialFile, offset > 0);
 
-            byte[] data = new byte[1024];
+            byte[] data = new byte[8 * 1024];
 
             int count;
-            float max = body.contentLength();
-            float totalLoad = 0f;
-            onProgress(0f);
+            long contentLength = body.contentLength();
+            float max = contentLength < 0 ? -1f : offset + contentLength;
+            float totalLoad = offset;
+            onProgress(max > 0 ? totalLoad / max : 0f);
             while ((count = input.read(data)) != -1) {
                 totalLoad += count;
-                onProgress(totalLoad / max);
+                if (max > 0) {
+                    onProgress(totalLoad / max);
+                }
                 output.write(data, 0, count);
             }
-            onProgress(1f);
-            d("[%s]File[%s] handled", url, file.getAbsolutePath());
             output.flush();
+            ChoicelyStaticUtils.close(output);
+            output = null;
+
+            if (contentLength >= 0 && partialFile.length() != offset + contentLength) {
+                w("[%s]Incomplete body[%d/%d]", url, partialFile.length(), offset + contentLength);
+            } else if (!partialFile.renameTo(file)) {
+                w("Could not rename[%s]", partialFile.getAbsolutePath());
+            } else {
+                complete = true;
+                onProgress(1f);
+                d("[%s]File[%s] handled", url, file.getAbsolutePath());
+            }
         } catch (IOException e) {
             w(e, "Error loading file");
         }
-        ChoicelyStaticUtils.close(is, input, output, response);
+        ChoicelyStaticUtils.close(is, input, response);
+        if (output != null) {
+            ChoicelyStaticUtils.close(output);
+        }
+
+        if (complete || !resumable || !partialFile.exists()) {
+            deletePartial(file);
+        }
+        return complete ? file : null;
+    }
+
+    /**
+     * Get offset the response body continues from. Zero if response contains the whole file and
+     * -1 if it is a partial response that does not match the partial file.
+     */
+    private long getResumeOffset(Response response, File partialFile) {
+        if (response.code() != HTTP_PARTIAL_CONTENT || !partialFile.exists()) {
+            return 0;
+        }
+        // Content-Range: bytes 1000-9999/10000
+        String contentRange = response.header("Content-Range");
+        long partialLength = partialFile.length();
+        if (contentRange != null && contentRange.startsWith("bytes ")) {
+            int dash = contentRange.indexOf('-');
+            if (dash > 6) {
+                try {
+                    long start = Long.parseLong(contentRange.substring(6, dash).trim());
+                    if (start == partialLength) {
+                        return partialLength;
+                    }
+                } catch (NumberFormatException e) {
+                    w("Invalid Content-Range[%s]", contentRange);
+                }
+            }
+        }
+        w("Content-Range[%s] does not match partial length[%d]", contentRange, partialLength);
+        return -1;
+    }
+
+    /**
+     * Store validator of a full response, needed to make sure a resumed download continues
+     * the same version of the file.
+     *
+     * @return true if download can be resumed later
+     */
+    private boolean writeValidator(Response response, File validatorFile) {
+        String validator = getValidator(response);
+        if (validator == null || !"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+            return false;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(validatorFile), "UTF-8");
+            writer.write(validator);
+            writer.flush();
+            return true;
+        } catch (IOException e) {
+            w(e, "Could not write validator");
+            return false;
+        } finally {
+            ChoicelyStaticUtils.close(writer);
+        }
+    }
+
+    /**
+     * Strong ETag or Last-Modified date of the response. Weak ETags can not be used with If-Range.
+     */
+    private static String getValidator(Response response) {
+        String etag = response.header("ETag");
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = response.header("Last-Modified");
+        if (!TextUtils.isEmpty(lastModified)) {
+            return lastModified;
+        }
+        return null;
+    }
+
+    /**
+     * Add Range and If-Range headers to the request if there is a resumable partial download
+     * of the file. Server answers with the rest of the file, or with the whole file if it has
+     * changed since.
+     *
+     * @param builder Request builder
+     * @param file    Target file of the download
+     */
+    public static void addResumeHeaders(Request.Builder builder, File file) {
+        File partialFile = getPartialFile(file);
+        File validatorFile = getValidatorFile(file);
+        if (!partialFile.exists() || partialFile.length() <= 0 || !validatorFile.exists()) {
+            return;
+        }
+        String validator = readValidator(validatorFile);
+        if (TextUtils.isEmpty(validator)) {
+            return;
+        }
+        builder.header("Range", "bytes=" + partialFile.length() + "-");
+        builder.header("If-Range", validator);
+    }
+
+    private static String readValidator(File validatorFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(validatorFile), "UTF-8"));
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                ChoicelyStaticUtils.close(reader);
+            }
+        }
+    }
+
+    /**
+     * Delete partial download of the file.
+     */
+    public static void deletePartial(File file) {
+        File partialFile = getPartialFile(file);
+        File validatorFile = getValidatorFile(file);
+        if (partialFile.exists()) {
+            partialFile.delete();
+        }
+        if (validatorFile.exists()) {
+            validatorFile.delete();
+        }
+    }
+
+    private static File getPartialFile(File file) {
+        return new File(file.getPath() + PARTIAL_SUFFIX);
+    }
 
-        return file;
+    private static File getValidatorFile(File file) {
+        return new File(file.getPath() + VALIDATOR_SUFFIX);
     }
 
     @Override
@@ -0,0 +1,112 @@
+package com.choicely.imageservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HostLimiterTest {
+
+    private static final String SLOW = "slow.example.com";
+    private static final String FAST = "fast.example.com";
+
+    private ResizableSemaphore slots;
+    private HostLimiter limiter;
+    private RequestScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        slots = new ResizableSemaphore(6);
+        limiter = new HostLimiter(slots);
+        scheduler = new RequestScheduler();
+    }
+
+    private RequestScheduler.Task task(String url, Priority priority) {
+        scheduler.offer(new ImageChooser(url), priority, 0);
+        return scheduler.poll();
+    }
+
+    @Test
+    public void defaultLimitLeavesThreadForOtherHosts() {
+        assertEquals(5, limiter.getMaxConcurrent(SLOW));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryStart(SLOW, task("s" + i, Priority.VISIBLE)));
+        }
+        assertFalse(limiter.tryStart(SLOW, task("s5", Priority.VISIBLE)));
+        assertTrue(limiter.tryStart(FAST, task("f0", Priority.VISIBLE)));
+        assertEquals(1, limiter.getWaitingCount(SLOW));
+    }
+
+    @Test
+    public void defaultLimitFollowsDownloadThreads() {
+        slots.resize(10);
+        assertEquals(9, limiter.getMaxConcurrent(SLOW));
+        slots.resize(2);
+        assertEquals(HostLimiter.MIN_DEFAULT_MAX_CONCURRENT, limiter.getMaxConcurrent(SLOW));
+
+        limiter.setDefaultMaxConcurrent(3);
+        assertEquals(3, limiter.getMaxConcurrent(SLOW));
+        limiter.setMaxConcurrent(SLOW, 1);
+        assertEquals(1, limiter.getMaxConcurrent(SLOW));
+        assertEquals(3, limiter.getMaxConcurrent(FAST));
+    }
+
+    @Test
+    public void finishedDownloadReleasesBestWaiter() {
+        limiter.setMaxConcurrent(SLOW, 1);
+        assertTrue(limiter.tryStart(SLOW, task("s0", Priority.VISIBLE)));
+        RequestScheduler.Task prefetch = task("s1", Priority.PREFETCH);
+        RequestScheduler.Task visible = task("s2", Priority.VISIBLE);
+        assertFalse(limiter.tryStart(SLOW, prefetch));
+        assertFalse(limiter.tryStart(SLOW, visible));
+
+        // released waiter is queued again and starts through tryStart like a new download
+        assertSame(visible, limiter.finish(SLOW));
+        assertTrue(limiter.tryStart(SLOW, visible));
+        assertSame(prefetch, limiter.finish(SLOW));
+        assertTrue(limiter.tryStart(SLOW, prefetch));
+        assertNull(limiter.finish(SLOW));
+        assertEquals(0, limiter.getRunningCount(SLOW));
+    }
+
+    @Test
+    public void hostUnderLimitIsLessBusy() {
+        limiter.setMaxConcurrent(SLOW, 2);
+        limiter.tryStart(SLOW, task("s0", Priority.VISIBLE));
+        assertTrue(limiter.compareLoad(FAST, SLOW) < 0);
+        limiter.tryStart(FAST, task("f0", Priority.VISIBLE));
+        assertEquals(0, limiter.compareLoad(FAST, SLOW));
+        limiter.tryStart(SLOW, task("s1", Priority.VISIBLE));
+        limiter.tryStart(FAST, task("f1", Priority.VISIBLE));
+        limiter.tryStart(FAST, task("f2", Priority.VISIBLE));
+        // slow host is at its limit, fast host is running more but can take another
+        assertTrue(limiter.compareLoad(FAST, SLOW) < 0);
+    }
+
+    @Test
+    public void hostsTakeTurnsForFreeThreads() {
+        for (int i = 0; i < 3; i++) {
+            RequestScheduler.Task task = task("s" + i, Priority.PREFETCH);
+            task.host = SLOW;
+            scheduler.parkForSlot(task);
+        }
+        for (int i = 0; i < 3; i++) {
+            RequestScheduler.Task task = task("f" + i, Priority.PREFETCH);
+            task.host = FAST;
+            scheduler.parkForSlot(task);
+        }
+
+        StringBuilder order = new StringBuilder();
+        while (scheduler.unparkForSlot(limiter)) {
+            RequestScheduler.Task task = scheduler.poll();
+            limiter.tryStart(task.host, task);
+            order.append(task.info.url.charAt(0));
+        }
+        assertEquals("sfsfsf", order.toString());
+    }
+
+}
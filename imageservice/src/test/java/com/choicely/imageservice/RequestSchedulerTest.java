@@ -0,0 +1,144 @@
+package com.choicely.imageservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequestSchedulerTest {
+
+    private long now = 1000;
+    private RequestScheduler scheduler;
+
+    private class TestScheduler extends RequestScheduler {
+
+        @Override
+        long now() {
+            return now;
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new TestScheduler();
+    }
+
+    private void offer(String url, Priority priority) {
+        scheduler.offer(new ImageChooser(url), priority, 0);
+    }
+
+    private String poll() {
+        RequestScheduler.Task task = scheduler.poll();
+        return task != null ? task.info.url : null;
+    }
+
+    @Test
+    public void visibleIsServedNewestFirstAndBeforeLowerClasses() {
+        offer("p1", Priority.PREFETCH);
+        offer("b1", Priority.BACKGROUND);
+        offer("v1", Priority.VISIBLE);
+        offer("v2", Priority.VISIBLE);
+
+        assertEquals("v2", poll());
+        assertEquals("v1", poll());
+        assertEquals("p1", poll());
+        assertEquals("b1", poll());
+        assertNull(poll());
+    }
+
+    @Test
+    public void agedVisibleIsServedOldestFirst() {
+        offer("v1", Priority.VISIBLE);
+        offer("v2", Priority.VISIBLE);
+        now += RequestScheduler.AGING_STEP_MILLIS;
+        offer("v3", Priority.VISIBLE);
+
+        assertEquals("v1", poll());
+        assertEquals("v2", poll());
+        assertEquals("v3", poll());
+        assertEquals(2, scheduler.getPromotedCount());
+    }
+
+    @Test
+    public void lowerClassesGetShareOfOldVisibleBacklog() {
+        for (int i = 0; i < 20; i++) {
+            offer("v" + i, Priority.VISIBLE);
+        }
+        offer("p0", Priority.PREFETCH);
+        offer("p1", Priority.PREFETCH);
+        offer("b0", Priority.BACKGROUND);
+        // visible backlog is many aging steps old
+        now += 10 * RequestScheduler.AGING_STEP_MILLIS;
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 15; i++) {
+            order.append(poll().charAt(0));
+        }
+        assertEquals("vvvvpvvvvpvvvvb", order.toString());
+    }
+
+    @Test
+    public void newVisibleBeatsLowerClassesThatHaveNotAgedToIt() {
+        offer("p0", Priority.PREFETCH);
+        now += RequestScheduler.AGING_STEP_MILLIS - 1;
+        for (int i = 0; i < 10; i++) {
+            offer("v" + i, Priority.VISIBLE);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals('v', poll().charAt(0));
+        }
+        assertEquals("p0", poll());
+    }
+
+    @Test
+    public void agedLowerClassesTieToTheOldest() {
+        offer("b0", Priority.BACKGROUND);
+        now += 1000;
+        offer("p0", Priority.PREFETCH);
+        now += 3 * RequestScheduler.AGING_STEP_MILLIS;
+
+        assertEquals("b0", poll());
+        assertEquals("p0", poll());
+    }
+
+    @Test
+    public void reofferedTaskIsCountedOnce() {
+        offer("p0", Priority.PREFETCH);
+        now += 500;
+        RequestScheduler.Task task = scheduler.poll();
+        now += 3000;
+        scheduler.offer(task);
+        assertEquals(task, scheduler.poll());
+
+        assertEquals(1, scheduler.getEnqueuedCount(Priority.PREFETCH));
+        assertEquals(1, scheduler.getDequeuedCount(Priority.PREFETCH));
+        assertEquals(500, scheduler.getAverageWaitMillis(Priority.PREFETCH));
+        assertEquals(500, scheduler.getMaxWaitMillis(Priority.PREFETCH));
+        assertEquals(0, scheduler.getPromotedCount());
+    }
+
+    @Test
+    public void resumedHeldTaskIsCountedOnce() {
+        ImageChooser info = new ImageChooser("p0");
+        info.tag = "list";
+        scheduler.offer(info, Priority.PREFETCH, 0);
+        scheduler.pause("list");
+        now += 200;
+        RequestScheduler.Task task = scheduler.poll();
+        assertEquals(true, scheduler.hold(task));
+        for (RequestScheduler.Task held : scheduler.resume("list")) {
+            scheduler.requeue(held, Priority.VISIBLE);
+        }
+        now += 100;
+        assertEquals("p0", poll());
+
+        assertEquals(1, scheduler.getEnqueuedCount(Priority.PREFETCH));
+        assertEquals(1, scheduler.getDequeuedCount(Priority.PREFETCH));
+        assertEquals(0, scheduler.getEnqueuedCount(Priority.VISIBLE));
+        assertEquals(0, scheduler.getDequeuedCount(Priority.VISIBLE));
+        assertEquals(200, scheduler.getAverageWaitMillis(Priority.PREFETCH));
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.choicely.imageservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static final int NO_RESPONSE = -1;
+    private static final long NO_RETRY_AFTER = -1;
+
+    private static RetryPolicy withoutJitter() {
+        return new RetryPolicy().setJitter(0f);
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetried() {
+        RetryPolicy policy = withoutJitter();
+        assertEquals(-1, policy.getRetryDelay(1, 404, NO_RETRY_AFTER));
+        assertEquals(-1, policy.getRetryDelay(1, 400, NO_RETRY_AFTER));
+        assertEquals(-1, policy.getRetryDelay(1, 304, NO_RETRY_AFTER));
+        assertTrue(RetryPolicy.isPermanent(404));
+        assertFalse(RetryPolicy.isPermanent(408));
+        assertFalse(RetryPolicy.isPermanent(429));
+        assertFalse(RetryPolicy.isPermanent(503));
+        assertFalse(RetryPolicy.isPermanent(NO_RESPONSE));
+    }
+
+    @Test
+    public void backoffDoublesUpToMaxDelay() {
+        RetryPolicy policy = withoutJitter()
+                .setNetworkAttempts(10)
+                .setBackoff(1000, 5000);
+        assertEquals(1000, policy.getRetryDelay(1, NO_RESPONSE, NO_RETRY_AFTER));
+        assertEquals(2000, policy.getRetryDelay(2, NO_RESPONSE, NO_RETRY_AFTER));
+        assertEquals(4000, policy.getRetryDelay(3, NO_RESPONSE, NO_RETRY_AFTER));
+        assertEquals(5000, policy.getRetryDelay(4, NO_RESPONSE, NO_RETRY_AFTER));
+        assertEquals(5000, policy.getRetryDelay(9, NO_RESPONSE, NO_RETRY_AFTER));
+    }
+
+    @Test
+    public void eachClassHasItsOwnAttempts() {
+        RetryPolicy policy = withoutJitter()
+                .setNetworkAttempts(3)
+                .setServerErrorAttempts(2)
+                .setThrottleAttempts(4);
+
+        // network errors and 408
+        assertTrue(policy.getRetryDelay(2, NO_RESPONSE, NO_RETRY_AFTER) > 0);
+        assertEquals(-1, policy.getRetryDelay(3, NO_RESPONSE, NO_RETRY_AFTER));
+        assertTrue(policy.getRetryDelay(2, 408, NO_RETRY_AFTER) > 0);
+        assertEquals(-1, policy.getRetryDelay(3, 408, NO_RETRY_AFTER));
+
+        // server errors, 503 without Retry-After is one of them
+        assertTrue(policy.getRetryDelay(1, 500, NO_RETRY_AFTER) > 0);
+        assertEquals(-1, policy.getRetryDelay(2, 500, NO_RETRY_AFTER));
+        assertEquals(-1, policy.getRetryDelay(2, 503, NO_RETRY_AFTER));
+
+        // throttling, 503 with Retry-After is one of them
+        assertTrue(policy.getRetryDelay(3, 429, NO_RETRY_AFTER) > 0);
+        assertEquals(-1, policy.getRetryDelay(4, 429, NO_RETRY_AFTER));
+        assertEquals(3000, policy.getRetryDelay(3, 503, 3000));
+        assertEquals(-1, policy.getRetryDelay(4, 503, 3000));
+    }
+
+    @Test
+    public void noneNeverRetries() {
+        RetryPolicy policy = RetryPolicy.none();
+        assertEquals(-1, policy.getRetryDelay(1, NO_RESPONSE, NO_RETRY_AFTER));
+        assertEquals(-1, policy.getRetryDelay(1, 500, NO_RETRY_AFTER));
+        assertEquals(-1, policy.getRetryDelay(1, 429, 1000));
+    }
+
+    @Test
+    public void retryAfterIsWaitedInsteadOfBackoff() {
+        RetryPolicy policy = withoutJitter().setBackoff(1000, 5000);
+        assertEquals(20000, policy.getRetryDelay(1, 429, 20000));
+        assertEquals(0, policy.getRetryDelay(1, 429, 0));
+    }
+
+    @Test
+    public void tooLongRetryAfterIsNotWaited() {
+        RetryPolicy policy = withoutJitter().setMaxRetryAfter(60000);
+        assertEquals(60000, policy.getRetryDelay(1, 429, 60000));
+        assertEquals(-1, policy.getRetryDelay(1, 429, 60001));
+    }
+
+    @Test
+    public void jitterTakesShareOffBackoff() {
+        RetryPolicy policy = new RetryPolicy()
+                .setNetworkAttempts(10)
+                .setBackoff(1000, 30000)
+                .setJitter(0.5f);
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getRetryDelay(2, NO_RESPONSE, NO_RETRY_AFTER);
+            assertTrue("delay " + delay, delay > 1000 && delay <= 2000);
+        }
+    }
+
+    @Test
+    public void jitterIsAddedOnTopOfRetryAfter() {
+        RetryPolicy policy = new RetryPolicy()
+                .setBackoff(1000, 30000)
+                .setJitter(0.5f);
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getRetryDelay(1, 429, 4000);
+            assertTrue("delay " + delay, delay >= 4000 && delay < 6000);
+        }
+    }
+
+}
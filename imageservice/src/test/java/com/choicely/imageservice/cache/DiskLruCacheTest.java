@@ -0,0 +1,194 @@
+package com.choicely.imageservice.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final String HEADER = "choicely.DiskLruCache\n1\n\n";
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("DiskLruCacheTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void entriesAndMetadataSurviveReopen() throws IOException {
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        cache.commit("a", writeFile("a", 10));
+        cache.commit("b", writeFile("b", 20), new CacheMetadata(1000, 60000, 500, "\"tag 1\""));
+        cache.close();
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(30, cache.size());
+        assertNull(cache.getMetadata("a"));
+        CacheMetadata metadata = cache.getMetadata("b");
+        assertNotNull(metadata);
+        assertEquals(1000, metadata.responseTime);
+        assertEquals(60000, metadata.maxAge);
+        assertEquals(500, metadata.lastModified);
+        assertEquals("\"tag 1\"", metadata.etag);
+    }
+
+    @Test
+    public void removedEntriesStayRemoved() throws IOException {
+        writeFile("a", 10);
+        writeFile("b", 20);
+        writeJournal(HEADER
+                + "CLEAN a 10\n"
+                + "CLEAN b 20\n"
+                + "CLEAN c 30\n"
+                + "REMOVE c\n");
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(30, cache.size());
+        assertFalse(cache.contains("c"));
+    }
+
+    @Test
+    public void truncatedLineIsRecoveredFromDirectory() throws IOException {
+        writeFile("a", 10);
+        writeFile("b", 20);
+        // process died while writing the CLEAN line of b
+        writeJournal(HEADER
+                + "CLEAN a 10\n"
+                + "CLEAN b");
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+        assertEquals(30, cache.size());
+        cache.close();
+
+        // journal was rebuilt and is valid now
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(30, cache.size());
+    }
+
+    @Test
+    public void entriesWithoutFilesAreDropped() throws IOException {
+        writeFile("a", 10);
+        writeJournal(HEADER
+                + "CLEAN a 10\n"
+                + "CLEAN missing 20\n");
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(10, cache.size());
+        assertFalse(cache.contains("missing"));
+    }
+
+    @Test
+    public void filesMissingFromJournalAreAdded() throws IOException {
+        writeFile("a", 10);
+        writeFile("unknown", 5);
+        writeFile("download.partial", 7);
+        writeFile("variant.tmp", 3);
+        writeJournal(HEADER + "CLEAN a 10\n");
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertTrue(cache.contains("unknown"));
+        assertFalse(cache.contains("download.partial"));
+        assertFalse(cache.contains("variant.tmp"));
+        assertEquals(15, cache.size());
+    }
+
+    @Test
+    public void invalidHeaderRebuildsFromDirectory() throws IOException {
+        writeFile("a", 10);
+        writeJournal("something else\n1\n\nCLEAN a 10\n");
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertTrue(cache.contains("a"));
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void backupIsRestoredWhenJournalIsMissing() throws IOException {
+        writeFile("a", 10);
+        writeJournal(HEADER + "CLEAN a 10\nMETA a 1000 2000 -1 -\n");
+        assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE)
+                .renameTo(new File(directory, DiskLruCache.JOURNAL_FILE_BACKUP)));
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertTrue(cache.contains("a"));
+        assertNotNull(cache.getMetadata("a"));
+        assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE_BACKUP).exists());
+    }
+
+    @Test
+    public void replacingOriginalRemovesVariants() throws IOException {
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        cache.commit("a", writeFile("a", 10));
+        String variant = DiskLruCache.getVariantKey("a", "t100x100");
+        cache.commit(variant, writeFile(variant, 5));
+        cache.commit("a", writeFile("a", 12));
+        cache.close();
+
+        cache = DiskLruCache.open(directory, MAX_SIZE);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains(variant));
+        assertEquals(12, cache.size());
+    }
+
+    private File writeFile(String name, int length) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[length]);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private void writeJournal(String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, DiskLruCache.JOURNAL_FILE)), "US-ASCII");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+}
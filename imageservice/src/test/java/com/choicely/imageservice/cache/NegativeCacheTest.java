@@ -0,0 +1,124 @@
+package com.choicely.imageservice.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NegativeCacheTest {
+
+    private static final String URL = "https://example.com/a.jpg";
+
+    private long now = 1000;
+    private NegativeCache cache;
+
+    private class TestCache extends NegativeCache {
+
+        TestCache(int maxEntries) {
+            super(maxEntries);
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        cache = new TestCache(NegativeCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    @Test
+    public void failureIsRememberedUntilItExpires() {
+        cache.setServerErrorTtl(60000);
+        cache.put(URL, 500);
+
+        now += 59999;
+        assertEquals(Integer.valueOf(500), cache.get(URL));
+        now += 1;
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void ttlDependsOnStatus() {
+        assertEquals(10 * 60 * 1000, cache.getTtl(404));
+        assertEquals(10 * 60 * 1000, cache.getTtl(410));
+        assertEquals(5 * 60 * 1000, cache.getTtl(403));
+        assertEquals(60 * 1000, cache.getTtl(503));
+        assertEquals(30 * 1000, cache.getTtl(-1));
+        assertEquals(0, cache.getTtl(304));
+    }
+
+    @Test
+    public void statusTtlOverridesClassTtl() {
+        cache.setTtl(403, 1000);
+        assertEquals(1000, cache.getTtl(403));
+        assertEquals(5 * 60 * 1000, cache.getTtl(401));
+
+        cache.put(URL, 403);
+        now += 1000;
+        assertNull(cache.get(URL));
+    }
+
+    @Test
+    public void zeroTtlIsNotCached() {
+        cache.setNetworkErrorTtl(0);
+        cache.put(URL, -1);
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.getPutCount());
+    }
+
+    @Test
+    public void newFailureRenewsTtl() {
+        cache.setServerErrorTtl(1000);
+        cache.put(URL, 500);
+        now += 800;
+        cache.put(URL, 502);
+        now += 800;
+        assertEquals(Integer.valueOf(502), cache.get(URL));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache = new TestCache(2);
+        cache.put("a", 404);
+        cache.put("b", 404);
+        cache.get("a");
+        cache.put("c", 404);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(Integer.valueOf(404), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(404), cache.get("c"));
+    }
+
+    @Test
+    public void shrinkingEvictsOldest() {
+        cache.put("a", 404);
+        cache.put("b", 404);
+        cache.put("c", 404);
+        cache.setMaxEntries(1);
+
+        assertEquals(1, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals(Integer.valueOf(404), cache.get("c"));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() {
+        cache.put(URL, 404);
+        cache.get(URL);
+        cache.get("other");
+        cache.remove(URL);
+        cache.get(URL);
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+}
@@ -0,0 +1,245 @@
+package com.choicely.imageservice.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ImageHeaderParserTest {
+
+    private static final int SOF0 = 0xc0;
+    private static final int SOF2 = 0xc2;
+    private static final int DHT = 0xc4;
+    private static final int SOS = 0xda;
+    private static final int APP0 = 0xe0;
+    private static final int APP1 = 0xe1;
+
+    @Test
+    public void jpegSizeIsReadFromFrameHeader() {
+        byte[] jpeg = new Jpeg()
+                .segment(APP0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0})
+                .frame(SOF0, 640, 480)
+                .toByteArray();
+
+        ImageHeaderParser header = parse(jpeg);
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.MIME_JPEG, header.mimeType);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertEquals(0, header.rotation);
+    }
+
+    @Test
+    public void jpegFillBytesBeforeMarkerAreSkipped() {
+        byte[] jpeg = new Jpeg()
+                .fill(3)
+                .segment(APP0, new byte[14])
+                .fill(1)
+                .frame(SOF2, 100, 50)
+                .toByteArray();
+
+        ImageHeaderParser header = parse(jpeg);
+        assertNotNull(header);
+        assertEquals(100, header.width);
+        assertEquals(50, header.height);
+    }
+
+    @Test
+    public void huffmanTableIsNotTakenForFrameHeader() {
+        byte[] jpeg = new Jpeg()
+                .segment(DHT, new byte[]{0, 1, 2, 3, 4, 5, 6})
+                .frame(SOF0, 32, 16)
+                .toByteArray();
+
+        ImageHeaderParser header = parse(jpeg);
+        assertNotNull(header);
+        assertEquals(32, header.width);
+        assertEquals(16, header.height);
+    }
+
+    @Test
+    public void exifOrientationIsReadInBothByteOrders() {
+        assertEquals(90, parseRotation(true, 6));
+        assertEquals(90, parseRotation(false, 6));
+        assertEquals(180, parseRotation(true, 3));
+        assertEquals(180, parseRotation(false, 3));
+        assertEquals(270, parseRotation(true, 8));
+        assertEquals(270, parseRotation(false, 8));
+        assertEquals(0, parseRotation(true, 1));
+        // mirrored orientations are not rotated
+        assertEquals(0, parseRotation(false, 5));
+    }
+
+    @Test
+    public void invalidExifDoesNotFailTheHeader() {
+        byte[] exif = exif(true, 6);
+        exif[6] = 'X'; // byte order mark
+        byte[] jpeg = new Jpeg().segment(APP1, exif).frame(SOF0, 10, 20).toByteArray();
+
+        ImageHeaderParser header = parse(jpeg);
+        assertNotNull(header);
+        assertEquals(0, header.rotation);
+        assertEquals(10, header.width);
+    }
+
+    @Test
+    public void scanBeforeFrameHeaderIsNotParsed() {
+        byte[] jpeg = new Jpeg().segment(SOS, new byte[10]).frame(SOF0, 10, 10).toByteArray();
+        assertNull(parse(jpeg));
+    }
+
+    @Test
+    public void truncatedJpegIsNotParsed() {
+        byte[] jpeg = new Jpeg().segment(APP0, new byte[14]).frame(SOF0, 640, 480).toByteArray();
+        byte[] truncated = new byte[jpeg.length - 6];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        assertNull(parse(truncated));
+    }
+
+    @Test
+    public void headerLongerThanLimitIsNotParsed() {
+        Jpeg jpeg = new Jpeg();
+        int segmentLength = 0xffff - 2;
+        for (int i = 0; i <= ImageHeaderParser.MAX_HEADER_BYTES / segmentLength; i++) {
+            jpeg.segment(APP0 + 2, new byte[segmentLength]);
+        }
+        assertNull(parse(jpeg.frame(SOF0, 10, 10).toByteArray()));
+    }
+
+    @Test
+    public void pngSizeIsReadFromHeaderChunk() {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        png.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, 8);
+        writeInt(png, 13);
+        png.write(new byte[]{'I', 'H', 'D', 'R'}, 0, 4);
+        writeInt(png, 1920);
+        writeInt(png, 1080);
+        png.write(new byte[]{8, 6, 0, 0, 0}, 0, 5);
+
+        ImageHeaderParser header = parse(png.toByteArray());
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.MIME_PNG, header.mimeType);
+        assertEquals(1920, header.width);
+        assertEquals(1080, header.height);
+    }
+
+    @Test
+    public void otherFormatsAreLeftToDecoder() {
+        assertNull(parse(new byte[]{'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0}));
+        assertNull(parse(new byte[0]));
+    }
+
+    private static int parseRotation(boolean littleEndian, int orientation) {
+        byte[] jpeg = new Jpeg()
+                .segment(APP1, exif(littleEndian, orientation))
+                .frame(SOF0, 10, 20)
+                .toByteArray();
+        ImageHeaderParser header = parse(jpeg);
+        assertNotNull(header);
+        return header.rotation;
+    }
+
+    private static ImageHeaderParser parse(byte[] data) {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * APP1 payload with an IFD0 of two entries, orientation being the second one.
+     */
+    private static byte[] exif(boolean littleEndian, int orientation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, 6);
+        if (littleEndian) {
+            out.write(new byte[]{'I', 'I', 0x2a, 0}, 0, 4);
+        } else {
+            out.write(new byte[]{'M', 'M', 0, 0x2a}, 0, 4);
+        }
+        writeInt(out, 8, littleEndian); // offset of IFD0 from the TIFF header
+        writeShort(out, 2, littleEndian);
+        // image width tag, LONG
+        writeShort(out, 0x0100, littleEndian);
+        writeShort(out, 4, littleEndian);
+        writeInt(out, 1, littleEndian);
+        writeInt(out, 10, littleEndian);
+        // orientation tag, SHORT
+        writeShort(out, 0x0112, littleEndian);
+        writeShort(out, 3, littleEndian);
+        writeInt(out, 1, littleEndian);
+        writeShort(out, orientation, littleEndian);
+        writeShort(out, 0, littleEndian);
+        writeInt(out, 0, littleEndian); // no next IFD
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeInt(out, value, false);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value & 0xffff, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value & 0xffff, false);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+        } else {
+            out.write((value >>> 8) & 0xff);
+            out.write(value & 0xff);
+        }
+    }
+
+    /**
+     * Builder of JPEG headers, image data is not needed by the parser.
+     */
+    private static class Jpeg {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Jpeg() {
+            out.write(0xff);
+            out.write(0xd8);
+        }
+
+        Jpeg fill(int count) {
+            for (int i = 0; i < count; i++) {
+                out.write(0xff);
+            }
+            return this;
+        }
+
+        Jpeg segment(int marker, byte[] payload) {
+            out.write(0xff);
+            out.write(marker);
+            writeShort(out, payload.length + 2, false);
+            out.write(payload, 0, payload.length);
+            return this;
+        }
+
+        Jpeg frame(int marker, int width, int height) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(8); // precision
+            writeShort(payload, height, false);
+            writeShort(payload, width, false);
+            payload.write(1); // components
+            payload.write(new byte[]{1, 0x11, 0}, 0, 3);
+            return segment(marker, payload.toByteArray());
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+    }
+
+}
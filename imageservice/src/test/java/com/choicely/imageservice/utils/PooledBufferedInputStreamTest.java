@@ -0,0 +1,179 @@
+package com.choicely.imageservice.utils;
+
+import com.choicely.imageservice.cache.ByteArrayPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledBufferedInputStreamTest {
+
+    private ByteArrayPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ByteArrayPool(ByteArrayPool.DEFAULT_MAX_BYTES);
+    }
+
+    @Test
+    public void readsSameBytesAsSource() throws IOException {
+        byte[] data = createData(200 * 1024);
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ChunkedInputStream(data, 1000), pool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(input.read());
+        out.write(input.read());
+        byte[] buffer = new byte[7000];
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        input.close();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void resetReturnsToMark() throws IOException {
+        byte[] data = createData(1000);
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ByteArrayInputStream(data), pool);
+        input.mark(100);
+        assertEquals(data[0] & 0xff, input.read());
+        assertEquals(data[1] & 0xff, input.read());
+        input.reset();
+        assertArrayEquals(data, readAll(input));
+        input.close();
+    }
+
+    @Test
+    public void bufferGrowsToKeepMarkPastItsSize() throws IOException {
+        int markLimit = 4 * PooledBufferedInputStream.DEFAULT_BUFFER_SIZE;
+        byte[] data = createData(markLimit + 1000);
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ChunkedInputStream(data, 4096), pool);
+        input.mark(markLimit);
+        byte[] header = new byte[3 * PooledBufferedInputStream.DEFAULT_BUFFER_SIZE];
+        readFully(input, header);
+        input.reset();
+        assertArrayEquals(data, readAll(input));
+        input.close();
+    }
+
+    @Test
+    public void markIsLostPastItsLimit() throws IOException {
+        byte[] data = createData(3 * PooledBufferedInputStream.DEFAULT_BUFFER_SIZE);
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ChunkedInputStream(data, 4096), pool);
+        input.mark(10);
+        readFully(input, new byte[2 * PooledBufferedInputStream.DEFAULT_BUFFER_SIZE]);
+        try {
+            input.reset();
+            fail("reset past the mark limit");
+        } catch (IOException e) {
+            // expected
+        }
+        input.close();
+    }
+
+    @Test
+    public void skipKeepsMark() throws IOException {
+        byte[] data = createData(1000);
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ByteArrayInputStream(data), pool);
+        input.mark(1000);
+        long skipped = 0;
+        while (skipped < 500) {
+            skipped += input.skip(500 - skipped);
+        }
+        assertEquals(data[500] & 0xff, input.read());
+        input.reset();
+        assertEquals(data[0] & 0xff, input.read());
+        input.close();
+    }
+
+    @Test
+    public void headerIsParsedAndStreamResetForDecoder() throws IOException {
+        byte[] jpeg = new byte[]{(byte) 0xff, (byte) 0xd8,
+                (byte) 0xff, (byte) 0xc0, 0, 11, 8, 0, 20, 0, 40, 1, 1, 0x11, 0};
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ByteArrayInputStream(jpeg), pool);
+        input.mark(ImageHeaderParser.MAX_HEADER_BYTES);
+        ImageHeaderParser header = ImageHeaderParser.parse(input);
+        input.reset();
+        assertEquals(40, header.width);
+        assertEquals(20, header.height);
+        assertArrayEquals(jpeg, readAll(input));
+        input.close();
+    }
+
+    @Test
+    public void closeReturnsBufferToPool() throws IOException {
+        PooledBufferedInputStream input = new PooledBufferedInputStream(new ByteArrayInputStream(createData(10)), pool);
+        input.read();
+        input.close();
+        assertTrue(pool.getCurrentSize() >= PooledBufferedInputStream.DEFAULT_BUFFER_SIZE);
+        try {
+            input.read();
+            fail("read after close");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // next stream reuses the pooled buffer
+        int misses = pool.getMissCount();
+        new PooledBufferedInputStream(new ByteArrayInputStream(createData(10)), pool).close();
+        assertEquals(misses, pool.getMissCount());
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = input.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            offset += read;
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Source that returns at most a few bytes per read, like a file or network stream.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+
+    }
+
+}